@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+* Evaluates a whole file of expressions, one per line, and writes one result per line to another file
+* in the same order: the value, or an error code if the expression is invalid, divides by zero or overflows.
+* The input is memory-mapped and split into chunks that end on line breaks, and every chunk is parsed and
+* evaluated on a fork-join pool, so all the cores work at once. Chunks are sized from the file: about four
+* for each thread of the pool, so even a file of a few megabytes keeps every core busy, but never more than
+* chunkBytes, nor under MIN_CHUNK (64KB), which isn't worth splitting. Only a few chunks are in flight at a
+* time, so files of any size can go through. Nothing is drawn, explained or printed along the way.
+* Variables are worth 0, like they are in ExpTree until they're bound.
+*/
+public class ExpBatch {
+    
+    //What gets written for an expression that doesn't have a value
+    public static final String INVALID = "E_INVALID";
+    public static final String DIV_BY_ZERO = "E_DIV_BY_ZERO";
+    public static final String OVERFLOW = "E_OVERFLOW";
+    
+    static final int MIN_CHUNK = 1 << 16;
+    
+    private final ForkJoinPool pool;
+    private final int chunkBytes; //the biggest a chunk gets
+    private long lines; //lines evaluated by the last run
+    private long errors; //lines of the last run that got an error code
+    private long chunks; //how many chunks the last run was split into
+    
+    //Constructors
+    public ExpBatch(ForkJoinPool pool, int chunkBytes) {
+        this.pool = pool;
+        this.chunkBytes = Math.max(chunkBytes, 1);
+    }
+    
+    public ExpBatch() { this(ForkJoinPool.commonPool(), 8 << 20); } //chunks of up to 8MB on the common pool
+    
+    //The results of one chunk, ready to be written
+    private static class Chunk {
+        byte[] out;
+        int lines;
+        int errors;
+    }
+    
+    //Evaluates every line of the input file and writes the results to the output file, replacing it.
+    //Returns how many lines there were.
+    public long run(Path input, Path output) throws IOException {
+        lines = 0;
+        errors = 0;
+        chunks = 0;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            int window = 2 * pool.getParallelism(); //how many chunks can be in flight at once
+            long chunk = Math.min(chunkBytes, Math.max(MIN_CHUNK, size / (4L * pool.getParallelism()) + 1));
+            ArrayDeque<ForkJoinTask<Chunk>> running = new ArrayDeque<ForkJoinTask<Chunk>>();
+            long start = 0;
+            while (start < size || !running.isEmpty()) {
+                while (start < size && running.size() < window) {
+                    final long from = start;
+                    final long to = lineEnd(in, Math.min(start + chunk, size), size);
+                    running.add(pool.submit(() -> evaluate(in, from, to)));
+                    start = to;
+                    chunks++;
+                }
+                Chunk done;
+                try {
+                    done = running.poll().join();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(done.out);
+                while (bytes.hasRemaining()) out.write(bytes);
+                lines += done.lines;
+                errors += done.errors;
+            }
+        }
+        return lines;
+    }
+    
+    //Finds where the line that pos is in ends, just past its line break (or the end of the file)
+    private static long lineEnd(FileChannel in, long pos, long size) throws IOException {
+        ByteBuffer look = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            look.clear();
+            int n = in.read(look, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (look.get(i) == '\n') return pos + i + 1;
+            }
+            pos += n;
+        }
+        return size;
+    }
+    
+    //Maps the bytes [from, to) of the input, which are whole lines, and evaluates each line
+    private static Chunk evaluate(FileChannel in, long from, long to) {
+        MappedByteBuffer map;
+        try {
+            map = in.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Chunk chunk = new Chunk();
+        ExpTree tree = new ExpTree();
+        int[] zeros = new int[0];
+        byte[] line = new byte[256];
+        StringBuilder out = new StringBuilder();
+        int end = map.limit();
+        int i = 0;
+        while (i < end) {
+            int length = 0;
+            byte b;
+            while (i < end && (b = map.get(i++)) != '\n') {
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+            }
+            if (length > 0 && line[length - 1] == '\r') length--;
+            tree.fill(new String(line, 0, length, StandardCharsets.ISO_8859_1), false);
+            int variables = tree.variables().length;
+            if (zeros.length < variables) zeros = new int[variables];
+            ExpResult result = tree.evaluate(zeros);
+            String code = code(result);
+            if (code == null) out.append(result.value());
+            else {
+                out.append(code);
+                chunk.errors++;
+            }
+            out.append('\n');
+            chunk.lines++;
+        }
+        chunk.out = out.toString().getBytes(StandardCharsets.ISO_8859_1);
+        return chunk;
+    }
+    
+    //Gives the error code for a result, or null if it has a value
+    static String code(ExpResult result) {
+        if (!result.isValid()) return INVALID;
+        if (result.dividedByZero()) return DIV_BY_ZERO;
+        if (result.overflowed()) return OVERFLOW;
+        return null;
+    }
+    
+    //How many lines the last run evaluated
+    public long lines() { return lines; }
+    
+    //How many lines of the last run got an error code instead of a value
+    public long errors() { return errors; }
+    
+    //How many chunks the last run split the input into
+    public long chunks() { return chunks; }
+    
+    //Evaluates the file named by the first argument into the file named by the second
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java ExpBatch <input file> <output file>");
+            return;
+        }
+        ExpBatch batch = new ExpBatch();
+        long start = System.nanoTime();
+        batch.run(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.println("Evaluated " + batch.lines() + " expressions (" + batch.errors() + " with errors) in " +
+            (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+* Measures how fast ExpTree is, so a change can be checked against the numbers from before it.
+* Trees of several sizes and three shapes (balanced, left-deep and right-deep) are generated, and for each
+* one fill() is timed from all three notations, along with prefix(), postfix(), infix(), infix(true), eval(),
+* toString(), drawing() and instruct(). Every benchmark gets a few warmup iterations so the JIT settles, and then
+* a few timed ones. Each benchmark reports its throughput, average time per call, and how many bytes
+* each call allocates (and how fast that is), plus how many garbage collections ran while it was measured.
+* Results can be saved to a CSV file and compared with an earlier one.
+* Usage: java ExpBench [-w warmups] [-i iterations] [-t ms per iteration] [-n sizes like 1023,65535]
+*                      [-f part of a benchmark name] [-o results.csv] [-b baseline.csv]
+*/
+public class ExpBench {
+    
+    //What gets timed, one call at a time
+    interface Benchmark {
+        Object run();
+    }
+    
+    //The numbers for one benchmark
+    static class Score {
+        String name;
+        String shape;
+        int nodes;
+        double opsPerSecond;
+        double error; //standard deviation of opsPerSecond between iterations
+        double nanosPerOp;
+        double bytesPerOp; //-1 if the JVM can't tell
+        double megabytesPerSecond;
+        long collections;
+        
+        String key() { return name + "," + shape + "," + nodes; }
+    }
+    
+    private static volatile Object sink; //every result goes here, so the JIT can't skip working it out
+    
+    private int warmups = 3;
+    private int iterations = 5;
+    private long iterationNanos = 500_000_000L;
+    private final com.sun.management.ThreadMXBean threads = allocationCounter();
+    
+    //Gives the thread bean that counts allocated bytes, or null if this JVM doesn't have one
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        if (!counter.isThreadAllocatedMemorySupported()) return null;
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+    
+    private long allocated() { return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId()); }
+    
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(gc.getCollectionCount(), 0);
+        return count;
+    }
+    
+    //Builds the infix for a tree of about the given number of nodes. Leaves go 1 to 9 and operators
+    //alternate between + and -, so nothing ever overflows or divides by zero and eval() stays quiet.
+    static String generate(String shape, int nodes) {
+        int leaves = (nodes + 1) / 2;
+        if (shape.equals("balanced")) {
+            String[] level = new String[Integer.highestOneBit(Math.max(leaves, 1))];
+            for (int i = 0; i < level.length; i++) level[i] = Integer.toString(i % 9 + 1);
+            for (int width = level.length; width > 1; width /= 2) {
+                for (int i = 0; i < width / 2; i++) level[i] = "(" + level[2 * i] + (i % 2 == 0 ? "+" : "-") + level[2 * i + 1] + ")";
+            }
+            return level[0];
+        }
+        StringBuilder out = new StringBuilder();
+        if (shape.equals("left-deep")) {
+            //((1+2)-3)+...
+            for (int i = 1; i < leaves; i++) out.append('(');
+            out.append(1);
+            for (int i = 1; i < leaves; i++) out.append(i % 2 == 1 ? '+' : '-').append(i % 9 + 1).append(')');
+        } else {
+            //1+(2-(3+...))
+            for (int i = 0; i < leaves - 1; i++) out.append(i % 9 + 1).append(i % 2 == 0 ? "+(" : "-(");
+            out.append((leaves - 1) % 9 + 1);
+            for (int i = 0; i < leaves - 1; i++) out.append(')');
+        }
+        return out.toString();
+    }
+    
+    //Times one benchmark: warmups first, then the iterations that count
+    private Score measure(String name, String shape, int nodes, Benchmark benchmark) {
+        for (int i = 0; i < warmups; i++) iterate(benchmark, null);
+        double[] rates = new double[iterations];
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        long gcs = collections();
+        for (int i = 0; i < iterations; i++) {
+            long[] counts = new long[3];
+            iterate(benchmark, counts);
+            rates[i] = counts[0] * 1e9 / counts[1];
+            ops += counts[0];
+            nanos += counts[1];
+            bytes += counts[2];
+        }
+        Score score = new Score();
+        score.name = name;
+        score.shape = shape;
+        score.nodes = nodes;
+        score.collections = collections() - gcs;
+        score.opsPerSecond = ops * 1e9 / nanos;
+        double squares = 0;
+        for (double rate : rates) squares += (rate - score.opsPerSecond) * (rate - score.opsPerSecond);
+        score.error = iterations > 1 ? Math.sqrt(squares / (iterations - 1)) : 0;
+        score.nanosPerOp = (double) nanos / ops;
+        score.bytesPerOp = threads == null ? -1 : (double) bytes / ops;
+        score.megabytesPerSecond = threads == null ? -1 : bytes * 1e9 / nanos / (1 << 20);
+        return score;
+    }
+    
+    //Calls the benchmark over and over for one iteration, putting the calls, nanoseconds and bytes in counts
+    private void iterate(Benchmark benchmark, long[] counts) {
+        long bytes = allocated();
+        long start = System.nanoTime();
+        long end = start + iterationNanos;
+        long ops = 0;
+        long now;
+        do {
+            sink = benchmark.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        if (counts == null) return;
+        counts[0] = ops;
+        counts[1] = now - start;
+        counts[2] = allocated() - bytes;
+    }
+    
+    //Runs every benchmark whose name has filter in it, on every shape and size
+    List<Score> run(int[] sizes, String filter) {
+        List<Score> scores = new ArrayList<Score>();
+        for (int size : sizes) {
+            for (String shape : new String[] {"balanced", "left-deep", "right-deep"}) {
+                ExpTree tree = new ExpTree();
+                tree.fill(generate(shape, size), false);
+                final String infix = tree.infix();
+                final String prefix = tree.prefix();
+                final String postfix = tree.postfix();
+                int nodes = tree.size();
+                tree.eval();
+                final ExpTree filled = tree;
+                final ExpTree refilled = new ExpTree();
+                LinkedHashMap<String, Benchmark> benchmarks = new LinkedHashMap<String, Benchmark>();
+                benchmarks.put("fill(prefix)", () -> {
+                    refilled.fill(prefix, false);
+                    return refilled;
+                });
+                benchmarks.put("fill(postfix)", () -> {
+                    refilled.fill(postfix, false);
+                    return refilled;
+                });
+                benchmarks.put("fill(infix)", () -> {
+                    refilled.fill(infix, false);
+                    return refilled;
+                });
+                benchmarks.put("prefix()", filled::prefix);
+                benchmarks.put("postfix()", filled::postfix);
+                benchmarks.put("infix()", filled::infix);
+                benchmarks.put("infix(minimal)", () -> filled.infix(true));
+                benchmarks.put("eval()", filled::eval);
+                benchmarks.put("toString()", filled::toString);
+                benchmarks.put("drawing()", filled::drawing);
+                benchmarks.put("instruct()", filled::instruct);
+                for (Map.Entry<String, Benchmark> benchmark : benchmarks.entrySet()) {
+                    String name = benchmark.getKey();
+                    if (filter != null && !name.contains(filter)) continue;
+                    Score score = measure(name, shape, nodes, benchmark.getValue());
+                    System.out.println(row(score));
+                    scores.add(score);
+                }
+            }
+        }
+        return scores;
+    }
+    
+    private static String header() {
+        return String.format(Locale.ROOT, "%-14s %-10s %8s %14s %10s %12s %12s %10s %5s", "Benchmark", "Shape", "Nodes",
+            "ops/s", "+-", "us/op", "B/op", "MB/s", "GCs");
+    }
+    
+    private static String row(Score score) {
+        return String.format(Locale.ROOT, "%-14s %-10s %8d %14.1f %10.1f %12.3f %12.0f %10.1f %5d", score.name, score.shape, score.nodes,
+            score.opsPerSecond, score.error, score.nanosPerOp / 1000, score.bytesPerOp, score.megabytesPerSecond, score.collections);
+    }
+    
+    //Saves scores as CSV, one line per benchmark
+    static void save(List<Score> scores, String file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add("benchmark,shape,nodes,ops_per_s,error,ns_per_op,bytes_per_op,mb_per_s,gcs");
+        for (Score s : scores) {
+            lines.add(String.format(Locale.ROOT, "%s,%.3f,%.3f,%.3f,%.3f,%.3f,%d", s.key(), s.opsPerSecond, s.error, s.nanosPerOp,
+                s.bytesPerOp, s.megabytesPerSecond, s.collections));
+        }
+        Files.write(Paths.get(file), lines);
+    }
+    
+    //Prints how each score changed from the same benchmark in a CSV saved earlier
+    static void compare(List<Score> scores, String file) throws IOException {
+        HashMap<String, double[]> baseline = new HashMap<String, double[]>();
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        for (int i = 1; i < lines.size(); i++) {
+            String[] parts = lines.get(i).split(",");
+            if (parts.length < 7) continue;
+            baseline.put(parts[0] + "," + parts[1] + "," + parts[2], new double[] {Double.parseDouble(parts[5]), Double.parseDouble(parts[6])});
+        }
+        System.out.println("\nCompared with " + file + " (negative is better):");
+        for (Score score : scores) {
+            double[] before = baseline.get(score.key());
+            if (before == null) continue;
+            String bytes = before[1] > 0 && score.bytesPerOp >= 0 ?
+                String.format(Locale.ROOT, "%+.1f%%", 100 * (score.bytesPerOp - before[1]) / before[1]) : "n/a";
+            System.out.println(String.format(Locale.ROOT, "%-14s %-10s %8d  time %+7.1f%%  allocation %s", score.name, score.shape,
+                score.nodes, 100 * (score.nanosPerOp - before[0]) / before[0], bytes));
+        }
+    }
+    
+    public static void main(String[] args) throws IOException {
+        ExpBench bench = new ExpBench();
+        int[] sizes = {1023, 65535};
+        String filter = null;
+        String output = null;
+        String baseline = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-w": bench.warmups = Integer.parseInt(args[i + 1]); break;
+                case "-i": bench.iterations = Math.max(Integer.parseInt(args[i + 1]), 1); break;
+                case "-t": bench.iterationNanos = Long.parseLong(args[i + 1]) * 1_000_000L; break;
+                case "-f": filter = args[i + 1]; break;
+                case "-o": output = args[i + 1]; break;
+                case "-b": baseline = args[i + 1]; break;
+                case "-n":
+                    String[] parts = args[i + 1].split(",");
+                    sizes = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) sizes[j] = Integer.parseInt(parts[j].trim());
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        System.out.println(header());
+        List<Score> scores = bench.run(sizes, filter);
+        if (output != null) save(scores, output);
+        if (baseline != null) compare(scores, baseline);
+    }
+}
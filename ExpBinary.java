@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+* A compact binary format for parsed expressions, so they can be saved once and loaded again anywhere
+* without scanning, detecting the notation or parsing. ExpTree.toBinary() writes one expression and
+* ExpTree.fromBinary() reads it back, straight out of a ByteBuffer, which can be a memory-mapped file.
+* Every value is a varint: 7 bits a byte, low bits first. A record is "EXPT", the version, a flags byte,
+* the notation, the variable names, how many nodes the tree has (and would have without sharing), the root,
+* and then every node in order of id, so children always come before their parents. A node starts with a
+* byte whose low 3 bits say what it is (a number, a variable or one of the 6 operators) and whose high 5
+* bits hold a small value: the number (zigzagged), the slot, or for an operation how far back its right
+* child is. 31 means the value didn't fit and follows as a varint. An operation then gives how far back
+* its left child is. A balanced tree of a million nodes takes about 2 bytes a node. Since version 2, the record
+* of an invalid expression ends with why it's invalid (the order of its ExpResult.Kind) and where, plus 1.
+* Version 1 records and libraries can still be read.
+* A library is a file of many records with a table of where each starts, and a name for each one.
+* open() maps it and reads nothing but the table, and each expression is only decoded when it's asked for.
+*/
+public class ExpBinary {
+    
+    static final int MAGIC = 0x45585054; //"EXPT", the start of every expression
+    static final int LIBRARY_MAGIC = 0x4558504C; //"EXPL", the start of a library file
+    static final byte VERSION = 2;
+    
+    //Flags
+    static final int VALID = 1; //the input was a valid expression
+    static final int SHARED = 2; //identical subtrees were built only once
+    
+    //Node codes: what the low 3 bits of a node's first byte mean, by position
+    static final String CODES = " $+-*/%^";
+    static final int INLINE = 31; //the most a node's first byte can hold, meaning a varint follows
+    
+    //Bytes being written, grown as needed
+    static class Out {
+        byte[] bytes;
+        int size;
+        
+        //Constructor
+        Out(int capacity) { bytes = new byte[Math.max(capacity, 16)]; }
+        
+        void put(int b) {
+            if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) b;
+        }
+        
+        void putInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) put(value >>> shift);
+        }
+        
+        //An unsigned varint
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                put((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            put(value);
+        }
+        
+        //A node's first byte, with the value in it or after it
+        void node(int code, int value) {
+            if (value >= 0 && value < INLINE) put(code | value << 3);
+            else {
+                put(code | INLINE << 3);
+                varint(value - INLINE);
+            }
+        }
+        
+        void string(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            for (byte b : utf8) put(b);
+        }
+        
+        byte[] toArray() { return Arrays.copyOf(bytes, size); }
+    }
+    
+    //Reads an unsigned varint
+    static int varint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Varint is too long at byte " + in.position());
+    }
+    
+    //Reads the value a node's first byte holds, which might follow it as a varint
+    static int nodeValue(ByteBuffer in, int first) {
+        int value = (first & 0xFF) >>> 3;
+        return value < INLINE ? value : INLINE + varint(in);
+    }
+    
+    static String string(ByteBuffer in) {
+        int length = varint(in);
+        if (length < 0 || length > in.remaining()) throw new IllegalArgumentException("String of " + length + " bytes is cut off at byte " + in.position());
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+    
+    //Numbers are zigzagged, so a negative one still reads back and takes as few bytes as a small positive one.
+    //Parsing and simplify() never make them, but records written before simplify() stopped folding to
+    //negatives can hold them.
+    static int zigzag(int value) { return (value << 1) ^ (value >> 31); }
+    
+    static int unzigzag(int value) { return (value >>> 1) ^ -(value & 1); }
+    
+    //Saves expressions as a library, replacing the file. names.get(i) is the name of trees.get(i).
+    public static void save(Path file, List<String> names, List<ExpTree> trees) throws IOException {
+        if (names.size() != trees.size()) throw new IllegalArgumentException("Every expression needs a name");
+        Out out = new Out(1 << 12);
+        out.putInt(LIBRARY_MAGIC);
+        out.put(VERSION);
+        out.putInt(trees.size());
+        //the table: where the names start, then where each record starts, then where the last one ends
+        int table = out.size;
+        for (int i = 0; i < trees.size() + 2; i++) out.putInt(0);
+        int[] offsets = new int[trees.size() + 2];
+        offsets[0] = out.size;
+        for (String name : names) out.string(name);
+        for (int i = 0; i < trees.size(); i++) {
+            offsets[i + 1] = out.size;
+            for (byte b : trees.get(i).toBinary()) out.put(b);
+        }
+        offsets[trees.size() + 1] = out.size;
+        int end = out.size;
+        out.size = table;
+        for (int offset : offsets) out.putInt(offset);
+        out.size = end;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(out.bytes, 0, out.size);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+    
+    //Maps a library file and reads its table
+    public static Library open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Library(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    //A library of saved expressions. Each one is decoded from the mapped file every time get() is called,
+    //so every caller gets its own tree. Safe to use from many threads at once.
+    public static class Library {
+        private final ByteBuffer data;
+        private final int size;
+        private final int[] offsets; //where the names start, then each record, then the end
+        private volatile String[] names; //read the first time a name is needed
+        private volatile HashMap<String, Integer> index;
+        
+        //Constructor
+        Library(ByteBuffer data) {
+            this.data = data.order(ByteOrder.BIG_ENDIAN);
+            if (data.remaining() < 9 || data.getInt(0) != LIBRARY_MAGIC) throw new IllegalArgumentException("Not an expression library");
+            if (data.get(4) < 1 || data.get(4) > VERSION) throw new IllegalArgumentException("Expression library version " + data.get(4) + " isn't supported");
+            size = data.getInt(5);
+            if (size < 0 || 9 + 4L * ((long) size + 2) > data.limit()) throw new IllegalArgumentException("Expression library is cut off");
+            offsets = new int[size + 2];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = data.getInt(9 + 4 * i);
+                if (offsets[i] < 0 || offsets[i] > data.limit() || (i > 0 && offsets[i] < offsets[i - 1])) {
+                    throw new IllegalArgumentException("Expression library has a broken table");
+                }
+            }
+        }
+        
+        //How many expressions there are
+        public int size() { return size; }
+        
+        //Decodes expression i
+        public ExpTree get(int i) {
+            check(i);
+            ByteBuffer record = data.duplicate();
+            record.limit(offsets[i + 2]).position(offsets[i + 1]);
+            return ExpTree.fromBinary(record);
+        }
+        
+        //Decodes the expression with the given name, or gives null if there isn't one
+        public ExpTree get(String name) {
+            Integer i = index().get(name);
+            return i == null ? null : get(i);
+        }
+        
+        //Gives the name of expression i
+        public String name(int i) {
+            check(i);
+            return names()[i];
+        }
+        
+        private void check(int i) {
+            if (i < 0 || i >= size) throw new IllegalArgumentException("No expression " + i + " in a library of " + size);
+        }
+        
+        private String[] names() {
+            String[] n = names;
+            if (n == null) {
+                ByteBuffer in = data.duplicate();
+                in.limit(offsets[1]).position(offsets[0]);
+                n = new String[size];
+                try {
+                    for (int i = 0; i < size; i++) n[i] = string(in);
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Expression library has broken names: " + e.getMessage());
+                }
+                names = n;
+            }
+            return n;
+        }
+        
+        private HashMap<String, Integer> index() {
+            HashMap<String, Integer> map = index;
+            if (map == null) {
+                map = new HashMap<String, Integer>();
+                String[] n = names();
+                for (int i = 0; i < n.length; i++) map.putIfAbsent(n[i], i);
+                index = map;
+            }
+            return map;
+        }
+    }
+}
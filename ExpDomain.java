@@ -0,0 +1,155 @@
+import java.math.BigInteger;
+
+/**
+* A kind of number an expression can be evaluated in: INT, LONG or BIG (BigInteger, so any size).
+* Any tree evaluates in any domain with ExpTree.evaluate(domain, slots), and the answer is exact or not
+* there at all: an operation whose answer doesn't fit the domain is an overflow, and evaluating stops.
+* Unlike eval(), powers are worked out exactly by repeated squaring instead of going through doubles.
+* A negative power of anything but 1 or -1 truncates to 0, like any other integer division, and a
+* negative power of 0 is a division by zero. Dividing by zero gives 0 and goes on, just like in eval().
+*/
+public abstract class ExpDomain<T extends Number> {
+    
+    //BigIntegers longer than this many bits count as an overflow, so one expression can't use up all the memory
+    public static final int MAX_BITS = 1 << 20;
+    
+    //The same answers eval() would give, except that powers are exact and anything that doesn't fit is an overflow
+    public static final ExpDomain<Integer> INT = new ExpDomain<Integer>() {
+        Integer number(int value) { return value; }
+        
+        Integer apply(char op, Integer a, Integer b, ExpResult result) {
+            long value = ExpDomain.exact(op, a, b, result);
+            return !result.overflow && (int) value == value ? (int) value : null;
+        }
+        
+        public String toString() { return "int"; }
+    };
+    
+    //64-bit answers
+    public static final ExpDomain<Long> LONG = new ExpDomain<Long>() {
+        Long number(int value) { return (long) value; }
+        
+        Long apply(char op, Long a, Long b, ExpResult result) {
+            long value = ExpDomain.exact(op, a, b, result);
+            return result.overflow ? null : value;
+        }
+        
+        public String toString() { return "long"; }
+    };
+    
+    //Answers of any size, up to MAX_BITS
+    public static final ExpDomain<BigInteger> BIG = new ExpDomain<BigInteger>() {
+        BigInteger number(int value) { return BigInteger.valueOf(value); }
+        
+        BigInteger apply(char op, BigInteger a, BigInteger b, ExpResult result) {
+            BigInteger value;
+            switch (op) {
+                case '+': value = a.add(b); break;
+                case '-': value = a.subtract(b); break;
+                case '*':
+                    if ((long) a.bitLength() + b.bitLength() > MAX_BITS) return null;
+                    value = a.multiply(b);
+                    break;
+                case '/': case '%':
+                    if (b.signum() == 0) {
+                        result.divByZero = true;
+                        return BigInteger.ZERO;
+                    }
+                    value = op == '/' ? a.divide(b) : a.remainder(b); //both truncate, like int division
+                    break;
+                default:
+                    if (b.signum() < 0 || a.abs().compareTo(BigInteger.ONE) <= 0) {
+                        //the answer is 0, 1 or -1 (or a division by zero), so only the signs, whether a is
+                        //bigger than 1 and whether b is odd matter, and longs can work it out
+                        long x = a.bitLength() < 2 ? a.longValue() : 2 * a.signum();
+                        long y = b.signum() == 0 ? 0 : b.testBit(0) ? b.signum() : 2 * b.signum(); //keeps the sign and whether it's odd
+                        return BigInteger.valueOf(ExpDomain.exact(op, x, y, result));
+                    }
+                    if (b.bitLength() > 31 || (long) a.bitLength() * b.intValue() > MAX_BITS) return null;
+                    value = a.pow(b.intValue());
+            }
+            return value.bitLength() > MAX_BITS ? null : value;
+        }
+        
+        public String toString() { return "BigInteger"; }
+    };
+    
+    //Only the three domains above
+    private ExpDomain() {}
+    
+    //Turns a number or a variable's value into this domain
+    abstract T number(int value);
+    
+    //Applies an operator to two numbers of this domain. Division by zero gives 0 and sets result.divByZero.
+    //Returns null if the answer doesn't fit in this domain. Called only while result.overflow is false.
+    abstract T apply(char op, T a, T b, ExpResult result);
+    
+    //Gives a number from any domain as an int, or Integer.MAX_VALUE if it doesn't fit
+    static int toInt(Number number) {
+        if (number instanceof BigInteger) return ((BigInteger) number).bitLength() < 32 ? number.intValue() : Integer.MAX_VALUE;
+        return number.longValue() == number.intValue() ? number.intValue() : Integer.MAX_VALUE;
+    }
+    
+    //The operators on longs, exactly. If the answer doesn't fit in a long, it sets result.overflow and gives 0.
+    //Overflows are caught by looking at the bits, not by catching exceptions, which would cost far more.
+    //Dividing by zero gives 0 and sets result.divByZero.
+    static long exact(char op, long a, long b, ExpResult result) {
+        long value;
+        switch (op) {
+            case '+':
+                value = a + b;
+                return ((a ^ value) & (b ^ value)) < 0 ? overflow(result) : value; //both signs differ from the answer's
+            case '-':
+                value = a - b;
+                return ((a ^ b) & (a ^ value)) < 0 ? overflow(result) : value;
+            case '*': return multiply(a, b, result);
+            case '/':
+                if (b == 0) {
+                    result.divByZero = true;
+                    return 0;
+                }
+                if (a == Long.MIN_VALUE && b == -1) return overflow(result);
+                return a / b;
+            case '%':
+                if (b == 0) {
+                    result.divByZero = true;
+                    return 0;
+                }
+                return a % b;
+            default:
+                if (a == 0 && b < 0) {
+                    result.divByZero = true;
+                    return 0;
+                }
+                return pow(a, b, result);
+        }
+    }
+    
+    private static long overflow(ExpResult result) {
+        result.overflow = true;
+        return 0;
+    }
+    
+    //Multiplies exactly: the high 64 bits of the 128-bit product have to be just the sign of the low ones
+    private static long multiply(long a, long b, ExpResult result) {
+        long value = a * b;
+        return Math.multiplyHigh(a, b) != (value >> 63) ? overflow(result) : value;
+    }
+    
+    //Raises a to the power b by repeated squaring, setting result.overflow if it doesn't fit in a long.
+    //a can't be 0 if b is negative.
+    static long pow(long a, long b, ExpResult result) {
+        if (b < 0) {
+            if (a == 1 || a == -1) return (b & 1) == 0 ? 1 : a;
+            return 0;
+        }
+        long power = 1;
+        while (true) {
+            if ((b & 1) != 0) power = multiply(power, a, result);
+            b >>= 1;
+            if (b == 0 || result.overflow) return power;
+            //only squared when it's needed again, so this can't overflow unless the answer would
+            a = multiply(a, a, result);
+        }
+    }
+}
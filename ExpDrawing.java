@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+* A drawing of a whole tree, however big, where toString() on ExpTree only fits 5 levels into 80 columns.
+* Nodes are placed with the Reingold-Tilford tidy layout: a parent sits halfway between its children, every
+* subtree is drawn the same way wherever it is, and the right subtree of each node is pushed just far enough
+* from the left one that nothing on any level comes within GAP columns of anything else. Only the inner edges
+* (contours) of the two subtrees are compared, and threads link the end of a short contour to where it goes on
+* in the taller subtree, so laying out n nodes takes O(n) time. Both passes go over the node ids in order,
+* children before parents, so even a tree a million levels deep needs no recursion.
+* The layout is in columns and levels. write() streams it as text one row at a time, canvas() gives it as a
+* grid of chars, and svg() writes it as an SVG picture. dot() writes the tree for Graphviz to lay out instead.
+* A shared tree is drawn as the tree it stands for, with a shared subtree drawn everywhere it's used, except by
+* dot(), which draws every node once. Since a small shared tree can stand for a huge one (a loaded one
+* can use each node twice in the next, doubling at every level), ExpTree.drawing() won't lay out anything that
+* comes to more than MAX_NODES.
+* Get one from ExpTree.drawing().
+*/
+public class ExpDrawing {
+    
+    static final int GAP = 2; //the fewest spaces between two things on the same level
+    static final int MAX_NODES = 1 << 22; //the most nodes drawn, about 300MB of layout
+    
+    //SVG sizes, in pixels
+    private static final int CHAR_WIDTH = 8;
+    private static final int LEVEL_HEIGHT = 40;
+    private static final int MARGIN = 10;
+    
+    //The tree as drawn, with ids in the order the nodes are visited children-first, left before right.
+    //Nodes of a shared tree get an id for every place they're drawn.
+    private final int size;
+    private final int[] node; //the ExpTree node each one stands for
+    private final int[] left; //-1 for leaves
+    private final int[] right;
+    private final String[] text;
+    
+    //The layout: the column each node's text starts at and the level it's on
+    private final int[] x;
+    private final int[] level;
+    private final int[] byLevel; //every id, level by level, left to right within a level
+    private final int[] levelStart; //the ids of level d are byLevel[levelStart[d]] up to byLevel[levelStart[d + 1]]
+    private final int width;
+    private final int levels;
+    
+    //Constructor, used by ExpTree.drawing(); values are the ones shown next to operations, or null
+    ExpDrawing(byte[] op, int[] val, int[] treeLeft, int[] treeRight, int root, String[] variables, ExpResult values) {
+        //Goes down from the root, parents before children, right before left. Backwards, that's children
+        //first and left before right, and each node's position backwards is its id.
+        int[] order = new int[16];
+        int[] parentAt = new int[16]; //where in order the parent is, or -1 for the root
+        boolean[] isLeft = new boolean[16];
+        int[] stack = {root};
+        int[] stackParent = {-1};
+        boolean[] stackLeft = {false};
+        int top = 1;
+        int count = 0;
+        while (top > 0) {
+            top--;
+            if (count == order.length) {
+                order = Arrays.copyOf(order, count * 2);
+                parentAt = Arrays.copyOf(parentAt, count * 2);
+                isLeft = Arrays.copyOf(isLeft, count * 2);
+            }
+            int n = stack[top];
+            order[count] = n;
+            parentAt[count] = stackParent[top];
+            isLeft[count] = stackLeft[top];
+            if (treeLeft[n] >= 0) {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                    stackParent = Arrays.copyOf(stackParent, stack.length);
+                    stackLeft = Arrays.copyOf(stackLeft, stack.length);
+                }
+                stack[top] = treeLeft[n];
+                stackParent[top] = count;
+                stackLeft[top++] = true;
+                stack[top] = treeRight[n];
+                stackParent[top] = count;
+                stackLeft[top++] = false;
+            }
+            count++;
+        }
+        size = count;
+        node = new int[size];
+        left = new int[size];
+        right = new int[size];
+        text = new String[size];
+        Arrays.fill(left, -1);
+        Arrays.fill(right, -1);
+        for (int k = 0; k < size; k++) {
+            int id = size - 1 - k;
+            int n = order[k];
+            node[id] = n;
+            if (parentAt[k] >= 0) {
+                int parent = size - 1 - parentAt[k];
+                if (isLeft[k]) left[parent] = id;
+                else right[parent] = id;
+            }
+            text[id] = label(op[n], val[n], treeLeft[n] < 0, variables, values, n);
+        }
+        
+        x = new int[size];
+        level = new int[size];
+        int[] prelim = new int[size]; //where a node goes relative to its parent's children, before shifting
+        int[] mod = new int[size]; //how far everything under a node is shifted
+        int[] thread = new int[size]; //where a contour goes on after this leaf, or -1
+        Arrays.fill(thread, -1);
+        for (int v = 0; v < size; v++) {
+            if (left[v] < 0) continue;
+            int l = left[v];
+            int r = right[v];
+            int shift = prelim[l] + text[l].length() + GAP - prelim[r]; //the two roots side by side
+            prelim[r] += shift;
+            mod[r] += shift;
+            //Then down the inside contours, the right one of l and the left one of r, pushing r further
+            //whenever they'd overlap. The outside contours go along to know where to thread.
+            int inLeft = l, outLeft = l, inRight = r, outRight = r;
+            int sumInLeft = mod[l], sumOutLeft = mod[l], sumInRight = mod[r], sumOutRight = mod[r];
+            while (nextRight(inLeft, thread) >= 0 && nextLeft(inRight, thread) >= 0) {
+                inLeft = nextRight(inLeft, thread);
+                inRight = nextLeft(inRight, thread);
+                outLeft = nextLeft(outLeft, thread);
+                outRight = nextRight(outRight, thread);
+                shift = prelim[inLeft] + sumInLeft + text[inLeft].length() + GAP - (prelim[inRight] + sumInRight);
+                if (shift > 0) {
+                    prelim[r] += shift;
+                    mod[r] += shift;
+                    sumInRight += shift;
+                    sumOutRight += shift;
+                }
+                sumInLeft += mod[inLeft];
+                sumInRight += mod[inRight];
+                sumOutLeft += mod[outLeft];
+                sumOutRight += mod[outRight];
+            }
+            //Whichever side is taller, the other side's outside contour goes on into it
+            if (nextRight(inLeft, thread) >= 0 && nextRight(outRight, thread) < 0) {
+                thread[outRight] = nextRight(inLeft, thread);
+                mod[outRight] += sumInLeft - sumOutRight;
+            }
+            if (nextLeft(inRight, thread) >= 0 && nextLeft(outLeft, thread) < 0) {
+                thread[outLeft] = nextLeft(inRight, thread);
+                mod[outLeft] += sumInRight - sumOutLeft;
+            }
+            prelim[v] = Math.floorDiv(prelim[l] + prelim[r], 2);
+        }
+        //Parents come after their children, so going down the ids adds up the shifts from the root down
+        int[] shifted = new int[size];
+        int min = 0;
+        int deepest = 0;
+        for (int v = size - 1; v >= 0; v--) {
+            x[v] = prelim[v] + shifted[v];
+            min = Math.min(min, x[v]);
+            deepest = Math.max(deepest, level[v]);
+            if (left[v] >= 0) {
+                shifted[left[v]] = shifted[right[v]] = shifted[v] + mod[v];
+                level[left[v]] = level[right[v]] = level[v] + 1;
+            }
+        }
+        int widest = 0;
+        for (int v = 0; v < size; v++) {
+            x[v] -= min;
+            widest = Math.max(widest, x[v] + text[v].length());
+        }
+        width = widest;
+        levels = deepest + 1;
+        
+        //Children-first order keeps each level left to right, so counting the ids out by level sorts them
+        levelStart = new int[levels + 1];
+        for (int v = 0; v < size; v++) levelStart[level[v] + 1]++;
+        for (int d = 0; d < levels; d++) levelStart[d + 1] += levelStart[d];
+        byLevel = new int[size];
+        int[] next = Arrays.copyOf(levelStart, levels);
+        for (int v = 0; v < size; v++) byLevel[next[level[v]]++] = v;
+    }
+    
+    //Where the left and right contours go on below a node: its children, or for a leaf, its thread
+    private int nextLeft(int v, int[] thread) { return left[v] >= 0 ? left[v] : thread[v]; }
+    
+    private int nextRight(int v, int[] thread) { return right[v] >= 0 ? right[v] : thread[v]; }
+    
+    //What a node shows: a variable's name, a number, or an operator with its value after it, like toString()
+    private static String label(byte op, int val, boolean leaf, String[] variables, ExpResult values, int n) {
+        if (op == '$') return variables[val];
+        if (leaf) return Integer.toString(val);
+        if (values == null) return Character.toString((char) op);
+        int value = values.nodeValue(n);
+        return (char) op + ((value == Integer.MAX_VALUE && values.overflow) ? " (BIG)" : " (" + value + ")");
+    }
+    
+    //How many columns and rows the text drawing takes, 3 rows a level except the last
+    public int width() { return width; }
+    
+    public int height() { return 3 * levels - 2; }
+    
+    //How many nodes are drawn, counting a shared subtree every time it's used
+    public int size() { return size; }
+    
+    //Puts row r of the text drawing in line, without trailing spaces. A level has a row of labels, a row of
+    //lines across to the children and a row of lines down to them, like toString() draws on ExpTree.
+    private void row(int r, StringBuilder line) {
+        line.setLength(0);
+        int d = r / 3;
+        for (int k = levelStart[d]; k < levelStart[d + 1]; k++) {
+            int v = byLevel[k];
+            if (r % 3 == 0) {
+                pad(line, x[v]);
+                line.append(text[v]);
+            } else if (left[v] >= 0) {
+                int l = x[left[v]];
+                int rx = x[right[v]];
+                if (r % 3 == 1) {
+                    pad(line, l + 1);
+                    while (line.length() < x[v]) line.append('_');
+                    line.append('|');
+                    while (line.length() < rx) line.append('_');
+                } else {
+                    pad(line, l);
+                    line.append('|');
+                    pad(line, rx);
+                    line.append('|');
+                }
+            }
+        }
+    }
+    
+    private static void pad(StringBuilder line, int column) {
+        while (line.length() < column) line.append(' ');
+    }
+    
+    //Writes the text drawing, one row at a time, so only a row is ever held in memory
+    public void write(Appendable out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int r = 0; r < height(); r++) {
+            row(r, line);
+            out.append(line).append('\n');
+        }
+    }
+    
+    //Gives the text drawing as height() rows of width() chars. That's the whole area, so for a big
+    //lopsided tree write() is much cheaper.
+    public char[][] canvas() {
+        char[][] canvas = new char[height()][width];
+        StringBuilder line = new StringBuilder();
+        for (int r = 0; r < canvas.length; r++) {
+            Arrays.fill(canvas[r], ' ');
+            row(r, line);
+            line.getChars(0, line.length(), canvas[r], 0);
+        }
+        return canvas;
+    }
+    
+    //Writes the tree in Graphviz's DOT language, every node once, even in a shared tree, with the left
+    //child first. Graphviz lays it out itself: dot -Tsvg tree.dot > tree.svg
+    public void dot(Appendable out) throws IOException {
+        out.append("digraph expression {\n");
+        out.append("    ordering=out;\n");
+        out.append("    node [shape=plaintext];\n");
+        int most = 0;
+        for (int n : node) most = Math.max(most, n);
+        boolean[] written = new boolean[most + 1];
+        for (int v = 0; v < size; v++) {
+            int n = node[v];
+            if (written[n]) continue;
+            written[n] = true;
+            out.append("    n").append(Integer.toString(n)).append(" [label=\"").append(text[v]).append("\"];\n");
+            if (left[v] < 0) continue;
+            out.append("    n").append(Integer.toString(n)).append(" -> n").append(Integer.toString(node[left[v]])).append(";\n");
+            out.append("    n").append(Integer.toString(n)).append(" -> n").append(Integer.toString(node[right[v]])).append(";\n");
+        }
+        out.append("}\n");
+    }
+    
+    //Writes the layout as an SVG picture, a monospace label for every node and a line to each child
+    public void svg(Appendable out) throws IOException {
+        out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(Integer.toString(width * CHAR_WIDTH + 2 * MARGIN))
+            .append("\" height=\"").append(Integer.toString((levels - 1) * LEVEL_HEIGHT + 2 * MARGIN + CHAR_WIDTH * 2))
+            .append("\" font-family=\"monospace\" font-size=\"13\">\n");
+        for (int v = 0; v < size; v++) {
+            if (left[v] < 0) continue;
+            for (int child : new int[] {left[v], right[v]}) {
+                out.append("<line x1=\"").append(Integer.toString(centerX(v))).append("\" y1=\"").append(Integer.toString(topY(v) + CHAR_WIDTH * 2))
+                    .append("\" x2=\"").append(Integer.toString(centerX(child))).append("\" y2=\"").append(Integer.toString(topY(child)))
+                    .append("\" stroke=\"black\"/>\n");
+            }
+        }
+        for (int v = 0; v < size; v++) {
+            out.append("<text x=\"").append(Integer.toString(MARGIN + x[v] * CHAR_WIDTH)).append("\" y=\"")
+                .append(Integer.toString(topY(v) + CHAR_WIDTH * 3 / 2)).append("\">").append(text[v]).append("</text>\n");
+        }
+        out.append("</svg>\n");
+    }
+    
+    //Where a node's first character is centered and where its level starts, in pixels
+    private int centerX(int v) { return MARGIN + x[v] * CHAR_WIDTH + CHAR_WIDTH / 2; }
+    
+    private int topY(int v) { return MARGIN + level[v] * LEVEL_HEIGHT; }
+    
+    //Gives the whole text drawing
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        try {
+            write(out);
+        } catch (IOException e) {
+            //a StringBuilder never throws it
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+* Records parses and evaluations as JDK Flight Recorder events, so they show up in a recording next to the
+* garbage collections, locks and CPU samples of the same moment. The events are expression.Parse and
+* expression.Evaluate, and they're recorded whenever a recording is running (java -XX:StartFlightRecording)
+* unless its settings turn them off. Nothing is made while no recording wants them. How long the work took is
+* a field of each event. Evaluations that take at least slowNanos also get the formula itself, in infix, so the
+* expensive ones can be found; it's cut off after MAX_FORMULA characters, and the walk of the tree stops there.
+*/
+public class ExpEvents implements ExpListener {
+    
+    static final int MAX_FORMULA = 256;
+    
+    @Name("expression.Parse")
+    @Label("Expression Parse")
+    @Category("Expressions")
+    @Description("An expression scanned and parsed into a tree")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+        @Label("Notation")
+        String notation;
+        
+        @Label("Valid")
+        boolean valid;
+        
+        @Label("Nodes")
+        int nodes;
+        
+        @Label("Depth")
+        int depth;
+        
+        @Label("Parse Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long parseTime;
+    }
+    
+    @Name("expression.Evaluate")
+    @Label("Expression Evaluate")
+    @Category("Expressions")
+    @Description("An expression evaluated for one or more sets of values")
+    @StackTrace(false)
+    static class EvaluateEvent extends Event {
+        @Label("Notation")
+        String notation;
+        
+        @Label("Rows")
+        long rows;
+        
+        @Label("Overflows")
+        long overflows;
+        
+        @Label("Divisions by Zero")
+        long divisionsByZero;
+        
+        @Label("Nodes")
+        int nodes;
+        
+        @Label("Eval Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long evalTime;
+        
+        @Label("Formula")
+        String formula;
+    }
+    
+    //Thrown by Truncated once it's full, to stop the tree from being walked any further. There's only one,
+    //made without a stack trace, so throwing it costs next to nothing.
+    private static class Full extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public Throwable fillInStackTrace() { return this; }
+    }
+    
+    private static final Full FULL = new Full();
+    
+    //Keeps the start of what's written to it, and throws FULL once it has MAX_FORMULA characters
+    private static class Truncated implements Appendable {
+        final StringBuilder kept = new StringBuilder();
+        
+        public Appendable append(CharSequence s) throws Full { return append(s, 0, s.length()); }
+        
+        public Appendable append(CharSequence s, int start, int end) throws Full {
+            int room = MAX_FORMULA - kept.length();
+            kept.append(s, start, Math.min(end, start + Math.max(room, 0)));
+            if (end - start >= room) throw FULL;
+            return this;
+        }
+        
+        public Appendable append(char c) throws Full {
+            kept.append(c);
+            if (kept.length() >= MAX_FORMULA) throw FULL;
+            return this;
+        }
+    }
+    
+    private final long slowNanos;
+    
+    //Constructors
+    public ExpEvents(long slowNanos) { this.slowNanos = slowNanos; }
+    
+    public ExpEvents() { this(1_000_000L); } //formulas for evaluations of a millisecond or more
+    
+    public void parsed(ExpTree tree, String notation, boolean valid, long nanos) {
+        ParseEvent event = new ParseEvent();
+        if (!event.shouldCommit()) return;
+        event.notation = notation;
+        event.valid = valid;
+        event.nodes = tree.size();
+        event.depth = tree.depth();
+        event.parseTime = nanos;
+        event.commit();
+    }
+    
+    public void evaluated(ExpTree tree, String notation, long rows, long overflows, long divisionsByZero, long nanos) {
+        EvaluateEvent event = new EvaluateEvent();
+        if (!event.shouldCommit()) return; //checked before anything's worked out, the formula above all
+        event.notation = notation;
+        event.rows = rows;
+        event.overflows = overflows;
+        event.divisionsByZero = divisionsByZero;
+        event.nodes = tree.size();
+        event.evalTime = nanos;
+        if (nanos >= slowNanos) {
+            Truncated formula = new Truncated();
+            try {
+                tree.infix(formula, true);
+            } catch (IOException e) {
+                //it's full, and the rest of the tree doesn't need walking
+            }
+            event.formula = formula.kept.toString();
+        }
+        event.commit();
+    }
+}
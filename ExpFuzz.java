@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Checks other evaluators against ExpTree on huge numbers of random expressions from an ExpGenerator.
+* ExpTree is the reference: each expression is filled into one and evaluated the way eval() does (with
+* evaluate(), which gives the same result without printing). Every engine then evaluates the same input,
+* and any difference in validity, value, overflow or division by zero is a mismatch. Cases are spread
+* over several threads, and the first mismatch of each engine (the one with the lowest case number, so
+* it's the same however many threads there are) is shrunk down to a small input that still fails.
+* Variables are worth value(name) everywhere. An engine can also be checked against a reference of its own
+* instead of ExpTree, such as evaluating in ExpDomain.BIG, and then exact values have to match too.
+*/
+public class ExpFuzz {
+    
+    //An evaluator being checked. Gives null for inputs it can't take, which are skipped.
+    interface Engine {
+        ExpResult evaluate(String input);
+    }
+    
+    //A mismatch: which case it was, the input and a smaller input that fails the same way
+    static class Failure {
+        final String engine;
+        final long index;
+        final String input;
+        final String smallest;
+        
+        Failure(String engine, long index, String input, String smallest) {
+            this.engine = engine;
+            this.index = index;
+            this.input = input;
+            this.smallest = smallest;
+        }
+    }
+    
+    private final ExpGenerator generator;
+    private final LinkedHashMap<String, Engine> engines = new LinkedHashMap<String, Engine>();
+    private final LinkedHashMap<String, Engine> references = new LinkedHashMap<String, Engine>(); //for engines not checked against ExpTree
+    private final ThreadLocal<ExpStream> streams = ThreadLocal.withInitial(ExpStream::new);
+    //what the last run found
+    private long cases;
+    private long valid;
+    private long overflows;
+    private long divisions;
+    private final LinkedHashMap<String, long[]> counts = new LinkedHashMap<String, long[]>(); //mismatches and skips
+    private final LinkedHashMap<String, Failure> failures = new LinkedHashMap<String, Failure>();
+    
+    //Constructor
+    public ExpFuzz(ExpGenerator generator) { this.generator = generator; }
+    
+    //Adds an engine to check
+    public void add(String name, Engine engine) { engines.put(name, engine); }
+    
+    //Adds an engine to check against another engine instead of ExpTree
+    public void add(String name, Engine engine, Engine reference) {
+        engines.put(name, engine);
+        references.put(name, reference);
+    }
+    
+    //Adds all the other ways this project has of evaluating an expression
+    public void addAll() {
+        add("program", input -> {
+            ExpTree tree = tree(input);
+            ExpProgram program = tree.compile();
+            return program == null ? invalid() : program.evaluate(slots(tree));
+        });
+        add("jit", input -> {
+            //promoted straight away, since a fresh program would never get run enough times to be
+            ExpTree tree = tree(input);
+            ExpProgram program = tree.compile();
+            if (program == null) return invalid();
+            return program.promote() ? program.evaluate(slots(tree)) : null;
+        });
+        add("batch", input -> {
+            ExpTree tree = tree(input);
+            if (!tree.isValid()) return invalid();
+            int[] slots = slots(tree);
+            int[][] columns = new int[slots.length][1];
+            for (int s = 0; s < slots.length; s++) columns[s][0] = slots[s];
+            int[] out = new int[1];
+            long[] overflowMask = new long[1];
+            long[] divByZeroMask = new long[1];
+            tree.eval(columns, out, overflowMask, divByZeroMask);
+            ExpResult result = new ExpResult(-1);
+            result.overflow = overflowMask[0] != 0;
+            result.divByZero = divByZeroMask[0] != 0;
+            result.value = result.overflow ? Integer.MAX_VALUE : out[0];
+            return result;
+        });
+        add("shared", input -> {
+            ExpTree shared = new ExpTree();
+            shared.fill(input, false, true);
+            return shared.evaluate(slots(shared));
+        });
+        add("simplified", input -> {
+            ExpTree tree = tree(input);
+            if (tree.isValid()) tree.simplify();
+            return tree.evaluate(slots(tree));
+        });
+        add("parallel", input -> {
+            ExpTree tree = tree(input);
+            return tree.evaluateParallel(slots(tree), ForkJoinPool.commonPool(), 2);
+        });
+        add("incremental", input -> {
+            ExpTree tree = tree(input);
+            ExpIncremental live = tree.incremental(slots(tree));
+            return live == null ? invalid() : live.result();
+        });
+        add("stream", input -> {
+            //the stream only reads postfix, so other valid inputs go in as the postfix of their tree
+            ExpTree tree = tree(input);
+            String postfix;
+            if ("Input detected as postfix notation.".equals(tree.notation())) postfix = input;
+            else if (tree.isValid()) postfix = tree.postfix();
+            else return null;
+            ExpStream stream = streams.get();
+            for (String name : tree.variables()) stream.bind(name, value(name));
+            try {
+                return stream.evaluate(new StringReader(postfix));
+            } catch (IOException e) {
+                return null;
+            }
+        });
+        //the exact domains, checked against BigIntegers: whatever fits in an int or a long must be the same
+        //number, so inputs that overflow those are skipped
+        Engine big = input -> {
+            ExpTree tree = tree(input);
+            return tree.evaluate(ExpDomain.BIG, slots(tree));
+        };
+        add("int", input -> {
+            ExpTree tree = tree(input);
+            ExpResult result = tree.evaluate(ExpDomain.INT, slots(tree));
+            return result.overflowed() ? null : result;
+        }, big);
+        add("long", input -> {
+            ExpTree tree = tree(input);
+            ExpResult result = tree.evaluate(ExpDomain.LONG, slots(tree));
+            return result.overflowed() ? null : result;
+        }, big);
+        add("exact", input -> {
+            ExpTree tree = tree(input);
+            return tree.evaluateExact(slots(tree));
+        }, big);
+    }
+    
+    //What a variable is worth: a small number that depends on its name, negative for some
+    static int value(String name) { return Math.floorMod(name.hashCode(), 41) - 20; }
+    
+    private static ExpTree tree(String input) {
+        ExpTree tree = new ExpTree();
+        tree.fill(input, false);
+        return tree;
+    }
+    
+    private static int[] slots(ExpTree tree) {
+        String[] names = tree.variables();
+        int[] slots = new int[names.length];
+        for (int s = 0; s < names.length; s++) slots[s] = value(names[s]);
+        return slots;
+    }
+    
+    private static ExpResult invalid() {
+        ExpResult result = new ExpResult(-1);
+        result.valid = false;
+        return result;
+    }
+    
+    //What eval() gives for an input
+    static ExpResult reference(String input) {
+        ExpTree tree = tree(input);
+        return tree.evaluate(slots(tree));
+    }
+    
+    //What an engine is checked against for an input
+    private ExpResult expected(String name, String input) {
+        Engine reference = references.get(name);
+        return reference == null ? reference(input) : reference.evaluate(input);
+    }
+    
+    //Whether two results say the same thing, exact values included when both have one
+    static boolean same(ExpResult a, ExpResult b) {
+        if (a.isValid() != b.isValid()) return false;
+        if (!a.isValid()) return true;
+        if (a.number() != null && b.number() != null && !big(a.number()).equals(big(b.number()))) return false;
+        return a.value() == b.value() && a.overflowed() == b.overflowed() && a.dividedByZero() == b.dividedByZero();
+    }
+    
+    private static BigInteger big(Number number) {
+        return number instanceof BigInteger ? (BigInteger) number : BigInteger.valueOf(number.longValue());
+    }
+    
+    //Whether an engine disagrees with its reference on an input; inputs the engine can't take don't count
+    private boolean fails(String name, String input) {
+        try {
+            ExpResult result = engines.get(name).evaluate(input);
+            return result != null && !same(expected(name, input), result);
+        } catch (RuntimeException | StackOverflowError e) {
+            return true;
+        }
+    }
+    
+    //Runs cases 0 up to count on threads threads, returning how many mismatches there were
+    public long run(long count, int threads) {
+        cases = valid = overflows = divisions = 0;
+        counts.clear();
+        failures.clear();
+        for (String name : engines.keySet()) counts.put(name, new long[2]);
+        final AtomicLong nextCase = new AtomicLong();
+        final long chunk = 256;
+        Thread[] workers = new Thread[Math.max(threads, 1)];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread(() -> {
+                long[] mine = new long[4]; //valid, overflows, divisions and cases, added in at the end
+                LinkedHashMap<String, long[]> myCounts = new LinkedHashMap<String, long[]>();
+                for (String name : engines.keySet()) myCounts.put(name, new long[2]);
+                LinkedHashMap<String, long[]> firsts = new LinkedHashMap<String, long[]>(); //lowest failing case per engine
+                HashMap<Engine, ExpResult> others = new HashMap<Engine, ExpResult>(); //each reference's result for a case, worked out once
+                long start;
+                while ((start = nextCase.getAndAdd(chunk)) < count) {
+                    for (long i = start; i < Math.min(start + chunk, count); i++) {
+                        String input = generator.generate(i);
+                        ExpResult expected = reference(input);
+                        mine[3]++;
+                        if (expected.isValid()) mine[0]++;
+                        if (expected.overflowed()) mine[1]++;
+                        if (expected.dividedByZero()) mine[2]++;
+                        others.clear();
+                        for (Map.Entry<String, Engine> engine : engines.entrySet()) {
+                            Engine reference = references.get(engine.getKey());
+                            ExpResult wanted = expected;
+                            if (reference != null) {
+                                wanted = others.get(reference);
+                                if (wanted == null) {
+                                    wanted = reference.evaluate(input);
+                                    others.put(reference, wanted);
+                                }
+                            }
+                            ExpResult result;
+                            try {
+                                result = engine.getValue().evaluate(input);
+                            } catch (RuntimeException | StackOverflowError e) {
+                                result = invalid();
+                                result.valid = !wanted.isValid(); //counts as a mismatch either way
+                            }
+                            long[] c = myCounts.get(engine.getKey());
+                            if (result == null) c[1]++;
+                            else if (!same(wanted, result)) {
+                                c[0]++;
+                                long[] first = firsts.get(engine.getKey());
+                                if (first == null || i < first[0]) firsts.put(engine.getKey(), new long[] {i});
+                            }
+                        }
+                    }
+                }
+                synchronized (this) {
+                    valid += mine[0];
+                    overflows += mine[1];
+                    divisions += mine[2];
+                    cases += mine[3];
+                    for (Map.Entry<String, long[]> c : myCounts.entrySet()) {
+                        counts.get(c.getKey())[0] += c.getValue()[0];
+                        counts.get(c.getKey())[1] += c.getValue()[1];
+                    }
+                    for (Map.Entry<String, long[]> first : firsts.entrySet()) {
+                        Failure known = failures.get(first.getKey());
+                        long index = first.getValue()[0];
+                        if (known == null || index < known.index) {
+                            failures.put(first.getKey(), new Failure(first.getKey(), index, generator.generate(index), null));
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        //the failures get shrunk once everything is done, one each
+        long mismatches = 0;
+        for (Map.Entry<String, Failure> failure : failures.entrySet()) {
+            Failure f = failure.getValue();
+            failure.setValue(new Failure(f.engine, f.index, f.input, shrink(f.engine, f.input)));
+        }
+        for (long[] c : counts.values()) mismatches += c[0];
+        return mismatches;
+    }
+    
+    //Splits an input into its tokens: numbers and names whole, every other character alone, spaces dropped
+    static List<String> tokens(String input) {
+        List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        while (i < input.length()) {
+            char c = input.charAt(i);
+            int end = i + 1;
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                while (end < input.length() && (Character.isLetterOrDigit(input.charAt(end)) || input.charAt(end) == '_')) end++;
+            }
+            if (c != ' ') tokens.add(input.substring(i, end));
+            i = end;
+        }
+        return tokens;
+    }
+    
+    //Makes a failing input as small as it can while the engine still disagrees with its reference: by keeping
+    //just part of it, by taking out runs of tokens, bigger runs first, and by making numbers smaller
+    String shrink(String engine, String input) {
+        String joiner = input.indexOf(' ') >= 0 ? " " : "";
+        List<String> tokens = tokens(input);
+        if (!fails(engine, String.join(joiner, tokens))) return input; //it only failed because of its spacing
+        boolean shrunk = true;
+        while (shrunk) {
+            shrunk = false;
+            //the shortest run of tokens that fails by itself, which is often a subexpression
+            search:
+            for (int length = 1; length < tokens.size() && tokens.size() <= 200; length++) {
+                for (int start = 0; start + length <= tokens.size(); start++) {
+                    List<String> part = new ArrayList<String>(tokens.subList(start, start + length));
+                    if (fails(engine, String.join(joiner, part))) {
+                        tokens = part;
+                        shrunk = true;
+                        break search;
+                    }
+                }
+            }
+            for (int run = Math.max(tokens.size() / 2, 1); run >= 1; run /= 2) {
+                for (int start = 0; start + run <= tokens.size(); ) {
+                    List<String> fewer = new ArrayList<String>(tokens.subList(0, start));
+                    fewer.addAll(tokens.subList(start + run, tokens.size()));
+                    if (!fewer.isEmpty() && fails(engine, String.join(joiner, fewer))) {
+                        tokens = fewer;
+                        shrunk = true;
+                    } else start++;
+                }
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                if (token.isEmpty() || !Character.isDigit(token.charAt(0))) continue;
+                for (String smaller : new String[] {"0", "1", "2", token.substring(0, token.length() - 1)}) {
+                    if (smaller.isEmpty() || smaller.length() > token.length() ||
+                        (smaller.length() == token.length() && smaller.compareTo(token) >= 0)) continue;
+                    tokens.set(i, smaller);
+                    if (fails(engine, String.join(joiner, tokens))) {
+                        token = smaller;
+                        shrunk = true;
+                        break;
+                    }
+                    tokens.set(i, token);
+                }
+            }
+        }
+        return String.join(joiner, tokens);
+    }
+    
+    //The first mismatch of each engine in the last run, shrunk
+    public List<Failure> failures() { return new ArrayList<Failure>(failures.values()); }
+    
+    //Gives a summary of the last run
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(cases + " cases: " + valid + " valid, " + overflows + " overflowed, " + divisions + " divided by zero.");
+        for (Map.Entry<String, long[]> c : counts.entrySet()) {
+            out.append("\n" + c.getKey() + ": " + c.getValue()[0] + " mismatches");
+            if (c.getValue()[1] > 0) out.append(", " + c.getValue()[1] + " skipped");
+        }
+        for (Failure f : failures.values()) {
+            out.append("\n" + f.engine + " first fails on case " + f.index + ", which shrinks to \"" + f.smallest + "\": " +
+                (references.containsKey(f.engine) ? "its reference" : "ExpTree") + " gives " +
+                expected(f.engine, f.smallest) + ", " + f.engine + " gives " + engines.get(f.engine).evaluate(f.smallest));
+        }
+        return out.toString();
+    }
+    
+    //Checks every engine on a million expressions (or as many as the first argument says), on every core.
+    //The second argument is the seed.
+    public static void main(String[] args) {
+        long count = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        ExpGenerator generator = new ExpGenerator(args.length > 1 ? Long.parseLong(args[1]) : 1);
+        ExpFuzz fuzz = new ExpFuzz(generator);
+        fuzz.addAll();
+        long start = System.nanoTime();
+        long mismatches = fuzz.run(count, Runtime.getRuntime().availableProcessors());
+        System.out.println(fuzz);
+        System.out.println(mismatches + " mismatches in " + (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+}
@@ -0,0 +1,229 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+* Makes random expressions in prefix, infix or postfix, for testing and benchmarking evaluators.
+* Everything about them can be controlled: how many leaves, how deep, which operators and how often,
+* how likely numbers are to be big enough to overflow, how many leaves are variables, how many optional
+* parentheses infix keeps, and how often an expression is broken on purpose to make it invalid.
+* Expression number i only depends on the seed, the settings and i, so any expression can be made again,
+* and generate(i) can be called from many threads at once.
+*/
+public class ExpGenerator {
+    
+    private static final String[] NAMES = {"x", "y", "z", "rate", "bonus"};
+    private static final String[] ILLEGAL = {"1.5", "#", "23f", "-", "()", "x!"};
+    
+    private final long seed;
+    private long next; //the index next() uses
+    private int maxLeaves = 32;
+    private int maxDepth = 64;
+    private String mix = "+-*/%^"; //each operator is picked as often as it appears here
+    private String notation = "any";
+    private double overflow = 0.05; //chance a number is big
+    private double variables = 0.1; //chance a leaf is a variable
+    private double invalid = 0.1; //chance an expression is broken on purpose
+    private double parens = 0.5; //chance infix keeps parentheses it doesn't need
+    private double lopsided = 0.2; //chance an operation puts one leaf on one side and everything else on the other
+    
+    //Constructor
+    public ExpGenerator(long seed) { this.seed = seed; }
+    
+    //Expressions get 1 to maxLeaves leaves, and so up to maxLeaves - 1 operators
+    public void setSize(int maxLeaves) { this.maxLeaves = Math.max(maxLeaves, 1); }
+    
+    //The most levels an expression can have; leaves are on level 1
+    public void setDepth(int maxDepth) { this.maxDepth = Math.max(maxDepth, 1); }
+    
+    //The operators to use, each as often as it appears: "++*" uses + twice as often as *
+    public void setMix(String operators) { mix = operators.isEmpty() ? "+" : operators; }
+    
+    //"prefix", "infix", "postfix", or "any" for a random one each time
+    public void setNotation(String notation) { this.notation = notation; }
+    
+    //The chance a number is big (2^16 up to 2147483647) instead of small, which makes overflows likely
+    public void setOverflow(double chance) { overflow = chance; }
+    
+    //The chance a leaf is a variable instead of a number
+    public void setVariables(double chance) { variables = chance; }
+    
+    //The chance an expression gets broken by a random edit, which almost always makes it invalid
+    public void setInvalid(double chance) { invalid = chance; }
+    
+    //The chance infix keeps each pair of parentheses it doesn't need; 1 puts them around every operation
+    public void setParens(double chance) { parens = chance; }
+    
+    //The chance an operation is lopsided, with a single leaf on one side; higher makes deeper trees
+    public void setLopsided(double chance) { lopsided = chance; }
+    
+    //Makes the next expression
+    public synchronized String next() { return generate(next++); }
+    
+    //Makes expression number index
+    public String generate(long index) {
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L + index);
+        String which = notation;
+        if (which.equals("any")) which = new String[] {"prefix", "infix", "postfix"}[random.nextInt(3)];
+        //no more leaves than fit in maxDepth levels
+        int leaves = 1 + random.nextInt(maxLeaves);
+        if (maxDepth < 31) leaves = Math.min(leaves, 1 << (maxDepth - 1));
+        Tree tree = new Tree(leaves, random);
+        List<String> tokens = which.equals("infix") ? tree.infix(random) : tree.fix(which.equals("prefix"));
+        if (random.nextDouble() < invalid) breakUp(tokens, which.equals("infix"), random);
+        return String.join(which.equals("infix") ? "" : " ", tokens);
+    }
+    
+    //A random tree, built breadth-first so no size or depth runs out of stack
+    private class Tree {
+        final char[] op; //the operator, or 0 for a leaf
+        final String[] leaf;
+        final int[] left;
+        final int[] right;
+        
+        Tree(int leaves, Random random) {
+            int nodes = 2 * leaves - 1;
+            op = new char[nodes];
+            leaf = new String[nodes];
+            left = new int[nodes];
+            right = new int[nodes];
+            int[] sizes = new int[nodes]; //how many leaves go under each node
+            int[] depths = new int[nodes];
+            sizes[0] = leaves;
+            depths[0] = 1;
+            int made = 1;
+            for (int n = 0; n < made; n++) {
+                if (sizes[n] == 1) {
+                    leaf[n] = leaf(random);
+                    left[n] = right[n] = -1;
+                    continue;
+                }
+                //neither side can have more leaves than fit in the levels that are left
+                int levels = maxDepth - depths[n]; //levels left for each child
+                long room = levels > 62 ? Long.MAX_VALUE : 1L << (levels - 1);
+                int least = (int) Math.max(1, sizes[n] - room);
+                int most = (int) Math.min(sizes[n] - 1, room);
+                int split;
+                if (random.nextDouble() < lopsided) split = random.nextBoolean() ? least : most;
+                else split = least + random.nextInt(most - least + 1);
+                op[n] = mix.charAt(random.nextInt(mix.length()));
+                left[n] = made;
+                right[n] = made + 1;
+                sizes[made] = split;
+                sizes[made + 1] = sizes[n] - split;
+                depths[made] = depths[made + 1] = depths[n] + 1;
+                made += 2;
+            }
+        }
+        
+        private String leaf(Random random) {
+            if (random.nextDouble() < variables) return NAMES[random.nextInt(NAMES.length)];
+            if (random.nextDouble() < overflow) return Integer.toString((1 << 16) + random.nextInt(Integer.MAX_VALUE - (1 << 16)) + 1);
+            return Integer.toString(random.nextInt(10) < 8 ? random.nextInt(10) : random.nextInt(1000));
+        }
+        
+        //Gives the tokens in prefix or postfix order
+        List<String> fix(boolean prefix) {
+            List<String> tokens = new ArrayList<String>();
+            int[] nodes = new int[64];
+            int[] stages = new int[64];
+            int size = 0;
+            nodes[size] = 0;
+            stages[size++] = 0;
+            while (size > 0) {
+                int n = nodes[size - 1];
+                if (left[n] < 0) {
+                    tokens.add(leaf[n]);
+                    size--;
+                    continue;
+                }
+                int stage = stages[size - 1]++;
+                if (stage == 0 && prefix) tokens.add(Character.toString(op[n]));
+                if (stage == 2) {
+                    if (!prefix) tokens.add(Character.toString(op[n]));
+                    size--;
+                    continue;
+                }
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    stages = Arrays.copyOf(stages, size * 2);
+                }
+                nodes[size] = stage == 0 ? left[n] : right[n];
+                stages[size++] = 0;
+            }
+            return tokens;
+        }
+        
+        //Gives the tokens in infix, with the parentheses the parser needs and some of the ones it doesn't
+        List<String> infix(Random random) {
+            List<String> tokens = new ArrayList<String>();
+            int[] nodes = new int[64];
+            int[] stages = new int[64];
+            boolean[] wrapped = new boolean[64];
+            int size = 0;
+            nodes[size] = 0;
+            stages[size] = 0;
+            wrapped[size++] = false;
+            while (size > 0) {
+                int n = nodes[size - 1];
+                int stage = stages[size - 1]++;
+                if (stage == 0 && wrapped[size - 1]) tokens.add("(");
+                if (left[n] < 0 || stage == 2) {
+                    if (left[n] < 0) tokens.add(leaf[n]);
+                    if (wrapped[size - 1]) tokens.add(")");
+                    size--;
+                    continue;
+                }
+                if (stage == 1) tokens.add(Character.toString(op[n]));
+                int child = stage == 0 ? left[n] : right[n];
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    stages = Arrays.copyOf(stages, size * 2);
+                    wrapped = Arrays.copyOf(wrapped, size * 2);
+                }
+                nodes[size] = child;
+                stages[size] = 0;
+                wrapped[size++] = left[child] >= 0 && (needsParens(op[n], op[child], stage == 0) || random.nextDouble() < parens);
+            }
+            return tokens;
+        }
+    }
+    
+    //Whether a child operation has to be in parentheses under its parent for infix to mean the same tree
+    static boolean needsParens(char parent, char child, boolean isLeft) {
+        int p = precedence(parent);
+        int c = precedence(child);
+        if (c != p) return c < p;
+        return parent == '^' ? isLeft : !isLeft; //^ groups from the right, everything else from the left
+    }
+    
+    private static int precedence(char op) {
+        switch (op) {
+            case '+': case '-': return 1;
+            case '^': return 3;
+            default: return 2;
+        }
+    }
+    
+    //Breaks an expression with one or two random edits
+    private static void breakUp(List<String> tokens, boolean infix, Random random) {
+        int edits = 1 + random.nextInt(2);
+        for (int e = 0; e < edits; e++) {
+            int at = random.nextInt(tokens.size());
+            switch (random.nextInt(infix ? 5 : 6)) {
+                case 0: if (tokens.size() > 1) tokens.remove(at); break; //a missing token
+                case 1: tokens.add(at, tokens.get(at)); break; //a repeated one
+                case 2: tokens.add(at, Character.toString("+-*/%^()".charAt(random.nextInt(8)))); break; //a stray operator
+                case 3: tokens.add(at, ILLEGAL[random.nextInt(ILLEGAL.length)]); break; //something no notation has
+                case 4:
+                    //two tokens the wrong way around
+                    if (at + 1 < tokens.size()) tokens.add(at, tokens.remove(at + 1));
+                    break;
+                default:
+                    //two tokens run together
+                    if (at + 1 < tokens.size()) tokens.set(at, tokens.get(at) + tokens.remove(at + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.util.Arrays;
+
+/**
+* An expression that stays evaluated while its leaves change. The value of every node is kept, so changing
+* a leaf only re-evaluates the nodes on its way up to the root, and it stops as soon as a node comes out the
+* same as before: an update to a balanced tree of a million nodes takes about 20 operations instead of a
+* million. Changes are batched. set() and bind() only note what changed, and the next result() works out
+* each node that depends on any of them once.
+* Leaves are picked by handle, which is the node id node(path) gives for a path from the root, 'L' for
+* left and 'R' for right. In a shared tree the same node can be under several paths, and setting it
+* changes it everywhere it's used.
+* Results are exactly what ExpTree.evaluate(slots) gives for the same values. After an overflow, though,
+* what happens depends on the order everything is worked out in, so while something has overflowed a
+* result takes one full walk of the tree. Not thread-safe.
+*/
+public class ExpIncremental {
+    
+    private static final byte OVERFLOW = 1;
+    private static final byte DIV_BY_ZERO = 2;
+    
+    //The tree, which is shared with the ExpTree it came from and never changed
+    private final byte[] op;
+    private final int[] left;
+    private final int[] right;
+    private final int root;
+    private final String[] variables;
+    
+    private final int[] values; //the value of every node, worked out as if nothing had overflowed before it
+    private final byte[] flags; //OVERFLOW and DIV_BY_ZERO, if either happened anywhere under a node
+    private final int[] slots; //the value of each variable
+    private final int[] parentStart; //the parents of node n are parents[parentStart[n]] up to parents[parentStart[n + 1]]
+    private final int[] parents;
+    private final int[] slotStart; //the leaves of slot s are slotLeaves[slotStart[s]] up to slotLeaves[slotStart[s + 1]]
+    private final int[] slotLeaves;
+    private int[] heap = new int[32]; //nodes waiting to be worked out again, smallest id first
+    private int heapSize;
+    private final boolean[] queued;
+    private final ExpResult check = new ExpResult(-1); //reused for every operation worked out
+    private ExpResult last; //the result of the last result(), until something changes
+    private long recomputed; //operations worked out again since the start
+    
+    //Constructor, used by ExpTree.incremental(). The arrays are the tree's own and are only read.
+    ExpIncremental(byte[] op, int[] val, int[] left, int[] right, int size, int root, String[] variables, int[] slots) {
+        this.op = op;
+        this.left = left;
+        this.right = right;
+        this.root = root;
+        this.variables = variables;
+        this.slots = Arrays.copyOf(slots, variables.length);
+        values = new int[size];
+        flags = new byte[size];
+        queued = new boolean[size];
+        
+        //who points at whom, counted first and then filled in
+        parentStart = new int[size + 1];
+        slotStart = new int[variables.length + 1];
+        for (int n = 0; n < size; n++) {
+            if (left[n] >= 0) {
+                parentStart[left[n] + 1]++;
+                parentStart[right[n] + 1]++;
+            } else if (op[n] == '$') slotStart[val[n] + 1]++;
+        }
+        for (int n = 0; n < size; n++) parentStart[n + 1] += parentStart[n];
+        for (int s = 0; s < variables.length; s++) slotStart[s + 1] += slotStart[s];
+        parents = new int[parentStart[size]];
+        slotLeaves = new int[slotStart[variables.length]];
+        int[] parentFill = Arrays.copyOf(parentStart, size);
+        int[] slotFill = Arrays.copyOf(slotStart, variables.length);
+        for (int n = 0; n < size; n++) {
+            if (left[n] >= 0) {
+                parents[parentFill[left[n]]++] = n;
+                parents[parentFill[right[n]]++] = n;
+            } else if (op[n] == '$') slotLeaves[slotFill[val[n]]++] = n;
+        }
+        
+        //children always come before their parents, so one pass in order of id evaluates everything
+        for (int n = 0; n < size; n++) {
+            if (left[n] >= 0) work(n);
+            else values[n] = op[n] == '$' ? this.slots[val[n]] : val[n];
+        }
+    }
+    
+    //Gives the node a path from the root leads to, like "LRL", or -1 if there's no such node
+    public int node(String path) {
+        int n = root;
+        for (int i = 0; i < path.length() && n >= 0; i++) {
+            char c = path.charAt(i);
+            if (left[n] < 0 || (c != 'L' && c != 'R')) return -1;
+            n = c == 'L' ? left[n] : right[n];
+        }
+        return n;
+    }
+    
+    //Gives the value a leaf has now
+    public int get(int leaf) { return values[leaf]; }
+    
+    //Gives a leaf a new value, to be taken into account by the next result(). A variable's leaf keeps it
+    //until the variable is bound again. Returns false if the handle isn't a leaf.
+    public boolean set(int leaf, int value) {
+        if (leaf < 0 || leaf >= values.length || left[leaf] >= 0) return false;
+        change(leaf, value);
+        return true;
+    }
+    
+    //Same as set(node(path), value)
+    public boolean set(String path, int value) { return set(node(path), value); }
+    
+    //Gives a variable a new value everywhere it's used, to be taken into account by the next result().
+    //Variables the expression doesn't use are ignored.
+    public void bind(String name, int value) {
+        int s = Arrays.asList(variables).indexOf(name);
+        if (s < 0) return;
+        slots[s] = value;
+        for (int i = slotStart[s]; i < slotStart[s + 1]; i++) change(slotLeaves[i], value);
+    }
+    
+    //Changes a leaf's value and queues what's above it
+    private void change(int leaf, int value) {
+        if (values[leaf] == value) return;
+        values[leaf] = value;
+        last = null;
+        queueParents(leaf);
+    }
+    
+    private void queueParents(int n) {
+        for (int i = parentStart[n]; i < parentStart[n + 1]; i++) {
+            int p = parents[i];
+            if (queued[p]) continue;
+            queued[p] = true;
+            if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+            //sift up
+            int at = heapSize++;
+            while (at > 0 && heap[(at - 1) / 2] > p) {
+                heap[at] = heap[(at - 1) / 2];
+                at = (at - 1) / 2;
+            }
+            heap[at] = p;
+        }
+    }
+    
+    //Takes the smallest node off the queue
+    private int dequeue() {
+        int top = heap[0];
+        int moving = heap[--heapSize];
+        int at = 0;
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= moving) break;
+            heap[at] = heap[child];
+            at = child;
+        }
+        heap[at] = moving;
+        queued[top] = false;
+        return top;
+    }
+    
+    //Works out an operation from its children's values, as if nothing had overflowed before it.
+    //Returns whether its value or flags changed.
+    private boolean work(int n) {
+        check.overflow = false;
+        check.divByZero = false;
+        int value = ExpTree.apply((char) op[n], values[left[n]], values[right[n]], check, false, false);
+        byte flag = (byte) (flags[left[n]] | flags[right[n]] | (check.overflow ? OVERFLOW : 0) | (check.divByZero ? DIV_BY_ZERO : 0));
+        if (value == values[n] && flag == flags[n]) return false;
+        values[n] = value;
+        flags[n] = flag;
+        return true;
+    }
+    
+    //Works out again every node above a change, in order of id so children are always done first
+    private void propagate() {
+        while (heapSize > 0) {
+            int n = dequeue();
+            recomputed++;
+            if (work(n)) queueParents(n);
+        }
+    }
+    
+    //Takes every change so far into account and gives the result, just like ExpTree.evaluate(slots) would
+    public ExpResult result() {
+        propagate();
+        if (last != null) return last;
+        ExpResult result = new ExpResult(-1);
+        if (root < 0) return last = result;
+        if ((flags[root] & OVERFLOW) == 0) {
+            //nothing overflowed, so every value is just what evaluate() gets
+            result.value = values[root];
+            result.divByZero = (flags[root] & DIV_BY_ZERO) != 0;
+        } else result.value = walk(result);
+        return last = result;
+    }
+    
+    //Same as result().value()
+    public int value() { return result().value(); }
+    
+    //How many operations have been worked out again because of changes
+    public long recomputed() { return recomputed; }
+    
+    //Evaluates the whole tree from its leaves, children-first, the way ExpTree does. A node reached again with
+    //the same overflow so far gives the same value again, so shared nodes are only worked out once or twice.
+    private int walk(ExpResult result) {
+        int[] known = new int[values.length];
+        byte[] knownWith = new byte[values.length]; //1 if known[n] was worked out before any overflow, 2 if after
+        int[] nodes = new int[32];
+        int[] stages = new int[32];
+        int[] stack = new int[32];
+        int depth = 0;
+        int size = 0;
+        nodes[depth] = root;
+        stages[depth++] = 0;
+        while (depth > 0) {
+            int n = nodes[depth - 1];
+            int value;
+            if (left[n] < 0) value = values[n];
+            else if (stages[depth - 1] == 0 && knownWith[n] == (result.overflow ? 2 : 1)) value = known[n];
+            else if (stages[depth - 1] < 2) {
+                int child = stages[depth - 1]++ == 0 ? left[n] : right[n];
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    stages = Arrays.copyOf(stages, depth * 2);
+                }
+                if (stages[depth - 1] == 1) knownWith[n] = (byte) (result.overflow ? -2 : -1); //in progress
+                nodes[depth] = child;
+                stages[depth++] = 0;
+                continue;
+            } else {
+                int b = stack[--size];
+                int a = stack[--size];
+                value = ExpTree.apply((char) op[n], a, b, result, false, false);
+                known[n] = value;
+                knownWith[n] = (byte) -knownWith[n];
+            }
+            depth--;
+            if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+            stack[size++] = value;
+        }
+        return stack[0];
+    }
+}
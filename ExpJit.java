@@ -0,0 +1,306 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Turns hot ExpPrograms into real JVM bytecode. An ExpProgram starts out interpreted, and once it has
+* been run threshold() times it asks this class for a Kernel: a hidden class whose run method is the
+* program written out as straight-line code, one static call per operator, which the JIT can then
+* compile like hand-written Java. The operator methods below keep exactly the overflow and
+* division-by-zero behavior of ExpTree.eval().
+* Programs too big for a single JVM method just stay interpreted, and so does any program whose class the
+* JVM won't load.
+*/
+public class ExpJit {
+    
+    //What a promoted program turns into. run() returns the result packed into a long: the value in the
+    //low 32 bits, plus the OVERFLOW and DIV_BY_ZERO flags.
+    interface Kernel {
+        long run(int[] slots);
+    }
+    
+    static final long OVERFLOW = 1L << 32;
+    static final long DIV_BY_ZERO = 1L << 33;
+    private static final long FLAGS = OVERFLOW | DIV_BY_ZERO;
+    private static final int MAX = Integer.MAX_VALUE;
+    
+    private static final int MAX_CODE = 60000; //a JVM method can't be longer than 64K of bytecode
+    
+    private static volatile int threshold = 10000;
+    private static final AtomicLong promoted = new AtomicLong();
+    private static final AtomicLong tooBig = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    
+    //How many runs it takes for a program to be promoted
+    public static int threshold() { return threshold; }
+    
+    //Changes how many runs it takes for a program to be promoted
+    public static void setThreshold(int runs) { threshold = Math.max(runs, 1); }
+    
+    //How many programs have been turned into bytecode so far
+    public static long promoted() { return promoted.get(); }
+    
+    //How many hot programs had to stay interpreted because they were too big
+    public static long tooBig() { return tooBig.get(); }
+    
+    //How many hot programs had to stay interpreted because the JVM wouldn't load their class
+    public static long rejected() { return rejected.get(); }
+    
+    //Used by the generated code: packs a value with the flags so far
+    private static long pack(int value, long flags) { return (value & 0xFFFFFFFFL) | flags; }
+    
+    //Used by the generated code: true when an overflow already happened and a big value is coming in,
+    //in which case eval() just passes the big value on
+    private static boolean stuck(int a, int b, long flags) {
+        return (a == MAX | b == MAX) && (flags & OVERFLOW) != 0;
+    }
+    
+    //The operators used by the generated code. a and b hold values in their low 32 bits,
+    //and flags holds every error so far.
+    static long add(long a, long b, long flags) {
+        int x = (int) a, y = (int) b;
+        flags &= FLAGS;
+        if (stuck(x, y, flags)) return pack(MAX, flags);
+        int r = x + y;
+        if (((x ^ r) & (y ^ r)) < 0) return pack(MAX, flags | OVERFLOW);
+        return pack(r, flags);
+    }
+    
+    static long sub(long a, long b, long flags) {
+        int x = (int) a, y = (int) b;
+        flags &= FLAGS;
+        if (stuck(x, y, flags)) return pack(MAX, flags);
+        int negY = -y; //same as Math.addExact(x, -y), which eval() uses
+        int r = x + negY;
+        if (((x ^ r) & (negY ^ r)) < 0) return pack(MAX, flags | OVERFLOW);
+        return pack(r, flags);
+    }
+    
+    static long mul(long a, long b, long flags) {
+        int x = (int) a, y = (int) b;
+        flags &= FLAGS;
+        if (stuck(x, y, flags)) return pack(MAX, flags);
+        long p = (long) x * y;
+        if ((int) p != p) return pack(MAX, flags | OVERFLOW);
+        return pack((int) p, flags);
+    }
+    
+    static long div(long a, long b, long flags) {
+        int x = (int) a, y = (int) b;
+        flags &= FLAGS;
+        if (stuck(x, y, flags)) return pack(MAX, flags);
+        if (y == 0) return pack(0, flags | DIV_BY_ZERO);
+        return pack(x / y, flags);
+    }
+    
+    static long mod(long a, long b, long flags) {
+        int x = (int) a, y = (int) b;
+        flags &= FLAGS;
+        if (stuck(x, y, flags)) return pack(MAX, flags);
+        if (y == 0) return pack(0, flags | DIV_BY_ZERO);
+        return pack(x % y, flags);
+    }
+    
+    static long pow(long a, long b, long flags) {
+        int x = (int) a, y = (int) b;
+        flags &= FLAGS;
+        if (stuck(x, y, flags)) return pack(MAX, flags);
+        int r = (int) Math.pow(x, y);
+        return pack(r, r == MAX ? flags | OVERFLOW : flags);
+    }
+    
+    //Used by the generated code to put the final value together with the flags
+    static long finish(long value, long flags) { return pack((int) value, flags & FLAGS); }
+    
+    //Gives the name of the operator method for an instruction code
+    private static String opName(int instruction) {
+        switch (instruction) {
+            case ExpProgram.ADD: return "add";
+            case ExpProgram.SUB: return "sub";
+            case ExpProgram.MUL: return "mul";
+            case ExpProgram.DIV: return "div";
+            case ExpProgram.MOD: return "mod";
+            default: return "pow";
+        }
+    }
+    
+    //Turns a program's instructions into a Kernel, or returns null if it's too big or empty or the JVM won't load it
+    static Kernel promote(int[] code, int maxDepth) {
+        if (code.length == 0) return null;
+        try {
+            byte[] bytes = new ClassWriter(code, maxDepth).write();
+            if (bytes == null) {
+                tooBig.incrementAndGet();
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            Kernel kernel = (Kernel) lookup.lookupClass().getDeclaredConstructor().newInstance();
+            promoted.incrementAndGet();
+            return kernel;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        } catch (LinkageError e) {
+            //a VerifyError, ClassFormatError or the like: the interpreter still gives the right answers
+            rejected.incrementAndGet();
+            return null;
+        }
+    }
+    
+    //Writes the class file for a Kernel. The run method has no branches at all, so it doesn't need the
+    //stack map frames newer class files want; the class uses the Java 8 format (version 52).
+    //Local variables: 0 is this, 1 is the slots array and 2-3 hold the flags so far.
+    private static class ClassWriter {
+        private final int[] program;
+        private final int maxDepth;
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        private int poolSize = 1; //entry 0 is never used
+        
+        //Constructor
+        ClassWriter(int[] program, int maxDepth) {
+            this.program = program;
+            this.maxDepth = maxDepth;
+        }
+        
+        //Adds a constant pool entry unless an equal one is already there, and returns its index
+        private int constant(String key, int tag, Object a, Object b) throws IOException {
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            pool.writeByte(tag);
+            if (tag == 1) pool.writeUTF((String) a);
+            else if (tag == 3) pool.writeInt((Integer) a);
+            else {
+                pool.writeShort((Integer) a);
+                if (b != null) pool.writeShort((Integer) b);
+            }
+            entries.put(key, poolSize);
+            return poolSize++;
+        }
+        
+        private int utf8(String s) throws IOException { return constant("U" + s, 1, s, null); }
+        
+        private int integer(int i) throws IOException { return constant("I" + i, 3, i, null); }
+        
+        private int classRef(String name) throws IOException { return constant("C" + name, 7, utf8(name), null); }
+        
+        private int method(String owner, String name, String type) throws IOException {
+            int nameAndType = constant("N" + name + type, 12, utf8(name), utf8(type));
+            return constant("M" + owner + "." + name + type, 10, classRef(owner), nameAndType);
+        }
+        
+        //Pushes an int constant with the shortest instruction there is
+        private void pushInt(DataOutputStream out, int value) throws IOException {
+            if (value >= -1 && value <= 5) out.writeByte(0x03 + value); //iconst_<n>
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                out.writeByte(0x10); //bipush
+                out.writeByte(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                out.writeByte(0x11); //sipush
+                out.writeShort(value);
+            } else {
+                int index = integer(value);
+                if (index < 256) {
+                    out.writeByte(0x12); //ldc
+                    out.writeByte(index);
+                } else {
+                    out.writeByte(0x13); //ldc_w
+                    out.writeShort(index);
+                }
+            }
+        }
+        
+        //Gives the bytes of the class file, or null if the program doesn't fit in one method
+        byte[] write() throws IOException {
+            int thisClass = classRef("ExpKernel"); //the JVM makes hidden class names unique
+            int superClass = classRef("java/lang/Object");
+            int kernel = classRef("ExpJit$Kernel");
+            int objectInit = method("java/lang/Object", "<init>", "()V");
+            int init = utf8("<init>");
+            int initType = utf8("()V");
+            int run = utf8("run");
+            int runType = utf8("([I)J");
+            int codeName = utf8("Code");
+            
+            //The run method: straight-line code, one value per leaf and one call per operator
+            ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+            DataOutputStream code = new DataOutputStream(codeBytes);
+            code.writeByte(0x09); //lconst_0
+            code.writeByte(0x41); //lstore_2
+            int pc = 0;
+            while (pc < program.length) {
+                int instruction = program[pc++];
+                if (instruction == ExpProgram.PUSH) {
+                    pushInt(code, program[pc++]);
+                    code.writeByte(0x85); //i2l
+                } else if (instruction == ExpProgram.LOAD) {
+                    code.writeByte(0x2b); //aload_1
+                    pushInt(code, program[pc++]);
+                    code.writeByte(0x2e); //iaload
+                    code.writeByte(0x85); //i2l
+                } else {
+                    code.writeByte(0x20); //lload_2
+                    code.writeByte(0xb8); //invokestatic
+                    code.writeShort(method("ExpJit", opName(instruction), "(JJJ)J"));
+                    code.writeByte(0x5c); //dup2
+                    code.writeByte(0x41); //lstore_2
+                }
+                if (code.size() > MAX_CODE) return null;
+            }
+            code.writeByte(0x20); //lload_2
+            code.writeByte(0xb8); //invokestatic
+            code.writeShort(method("ExpJit", "finish", "(JJ)J"));
+            code.writeByte(0xad); //lreturn
+            
+            ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(classBytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolSize);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(0x0011); //public final
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(kernel);
+            out.writeShort(0); //no fields
+            out.writeShort(2);
+            //public <init>() { super(); }
+            out.writeShort(0x0001);
+            out.writeShort(init);
+            out.writeShort(initType);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + 5);
+            out.writeShort(1); //max stack
+            out.writeShort(1); //max locals
+            out.writeInt(5);
+            out.writeByte(0x2a); //aload_0
+            out.writeByte(0xb7); //invokespecial
+            out.writeShort(objectInit);
+            out.writeByte(0xb1); //return
+            out.writeShort(0);
+            out.writeShort(0);
+            //public long run(int[] slots)
+            out.writeShort(0x0001);
+            out.writeShort(run);
+            out.writeShort(runType);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.size());
+            out.writeShort(2 * maxDepth + 4); //max stack: every value is a long, plus the flags and a call
+            out.writeShort(4); //max locals
+            out.writeInt(code.size());
+            codeBytes.writeTo(out);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0); //no class attributes
+            return classBytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+* Told about every expression ExpTree parses and evaluates, once it's installed with ExpTree.setListener().
+* ExpMetrics counts everything with LongAdders and ExpEvents records it as Flight Recorder events.
+* Calls come from whichever threads are parsing and evaluating, often many at once, and they come on the
+* hot path, so they should be quick and never block. Without a listener, nothing is timed or counted.
+*/
+public interface ExpListener {
+    
+    //Called after fill(). notation is "prefix", "infix" or "postfix", "empty" if there was no input, or "unknown"
+    //if the input had characters no notation allows. nanos is how long scanning and parsing took.
+    void parsed(ExpTree tree, String notation, boolean valid, long nanos);
+    
+    //Called after tree is evaluated for rows sets of values, rows of which overflowed and divisionsByZero of which
+    //divided by zero. nanos is how long it took all together. tree.operations(op) tells how many times each
+    //operator was worked out for each row. Evaluating an invalid expression isn't reported.
+    void evaluated(ExpTree tree, String notation, long rows, long overflows, long divisionsByZero, long nanos);
+    
+    //Gives a listener that tells both first and second
+    static ExpListener both(ExpListener first, ExpListener second) {
+        return new ExpListener() {
+            public void parsed(ExpTree tree, String notation, boolean valid, long nanos) {
+                first.parsed(tree, notation, valid, nanos);
+                second.parsed(tree, notation, valid, nanos);
+            }
+            
+            public void evaluated(ExpTree tree, String notation, long rows, long overflows, long divisionsByZero, long nanos) {
+                first.evaluated(tree, notation, rows, overflows, divisionsByZero, nanos);
+                second.evaluated(tree, notation, rows, overflows, divisionsByZero, nanos);
+            }
+        };
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+* Puts load on an ExpServer and reports how many requests a second it answers and how long they take.
+* Each client thread keeps one connection open and sends a request, waits for the answer and sends the next,
+* for a warmup period and then for the time being measured. Every latency measured is kept, so the
+* percentiles are exact. The clients speak just enough HTTP/1.1 to do that over a plain socket, since on
+* one box a full HTTP client would take most of the CPU the server is supposed to be measured with.
+* The expressions come from ExpGenerator. With few distinct ones (-n), most parses are cache hits and more
+* identical requests get coalesced. Without -p it starts a server in the same JVM on a free port, so one
+* command measures a single box:
+*     java ExpLoad -c 32 -d 10 -n 1000
+*/
+public class ExpLoad {
+    
+    private String host = "127.0.0.1";
+    private int port = -1; //-1 to start a server here
+    private int clients = 16;
+    private int seconds = 10;
+    private int warmupSeconds = 2;
+    private int distinct = 1000; //how many different expressions are sent
+    private int size = 16; //the most leaves each one has
+    
+    //What one client saw while it was being measured
+    private static class Client extends Thread {
+        long[] latencies = new long[1 << 12]; //in nanoseconds
+        int count;
+        int errors;
+        final String host;
+        final int port;
+        final byte[][] requests;
+        final long measureFrom;
+        final long end;
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private final StringBuilder header = new StringBuilder();
+        private byte[] body = new byte[1024];
+        
+        //Constructor
+        Client(String host, int port, byte[][] requests, long measureFrom, long end) {
+            this.host = host;
+            this.port = port;
+            this.requests = requests;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+        
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long now = System.nanoTime();
+            while (now < end) {
+                byte[] request = requests[random.nextInt(requests.length)];
+                boolean ok;
+                try {
+                    ok = send(request) == 200;
+                } catch (IOException e) {
+                    ok = false;
+                    close();
+                }
+                long done = System.nanoTime();
+                if (now >= measureFrom) {
+                    if (!ok) errors++;
+                    if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = done - now;
+                }
+                now = done;
+            }
+            close();
+        }
+        
+        //Sends a request on the open connection, opening one if there isn't one, reads the whole answer
+        //and gives its status
+        private int send(byte[] request) throws IOException {
+            if (socket == null) {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                in = new BufferedInputStream(socket.getInputStream());
+            }
+            out.write(request);
+            out.flush();
+            //the status line and headers, up to the empty line
+            int status = -1;
+            int length = 0;
+            while (true) {
+                header.setLength(0);
+                int c;
+                while ((c = in.read()) != '\n') {
+                    if (c < 0) throw new EOFException("Connection closed");
+                    if (c != '\r') header.append((char) c);
+                }
+                if (header.length() == 0) break;
+                String line = header.toString();
+                if (status < 0) status = Integer.parseInt(line.substring(9, 12));
+                else if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) length = Integer.parseInt(line.substring(15).trim());
+            }
+            if (length > body.length) body = new byte[length];
+            for (int read = 0; read < length; ) {
+                int n = in.read(body, read, length - read);
+                if (n < 0) throw new EOFException("Connection closed");
+                read += n;
+            }
+            return status;
+        }
+        
+        private void close() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                //it's being dropped anyway
+            }
+            socket = null;
+        }
+    }
+    
+    //Runs the load and gives a report of what was measured
+    String run() throws IOException, InterruptedException {
+        ExpServer server = null;
+        int target = port;
+        if (target < 0) {
+            server = new ExpServer(0);
+            server.start();
+            target = server.port();
+        }
+        try {
+            ExpGenerator generator = new ExpGenerator(25);
+            generator.setSize(size);
+            byte[][] requests = new byte[Math.max(distinct, 1)][];
+            for (int i = 0; i < requests.length; i++) {
+                String request = "GET /eval?expr=" + URLEncoder.encode(generator.generate(i), StandardCharsets.UTF_8) + " HTTP/1.1\r\n" +
+                    "Host: " + host + ":" + target + "\r\n\r\n";
+                requests[i] = request.getBytes(StandardCharsets.US_ASCII);
+            }
+            long start = System.nanoTime();
+            long measureFrom = start + warmupSeconds * 1_000_000_000L;
+            long end = measureFrom + seconds * 1_000_000_000L;
+            Client[] threads = new Client[clients];
+            for (int c = 0; c < clients; c++) {
+                threads[c] = new Client(host, target, requests, measureFrom, end);
+                threads[c].start();
+            }
+            int total = 0;
+            int errors = 0;
+            for (Client client : threads) {
+                client.join();
+                total += client.count;
+                errors += client.errors;
+            }
+            long[] all = new long[total];
+            int at = 0;
+            for (Client client : threads) {
+                System.arraycopy(client.latencies, 0, all, at, client.count);
+                at += client.count;
+            }
+            Arrays.sort(all);
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.ROOT, "%d clients, %d distinct expressions, %d s: %d requests (%d failed), %.0f requests/s%n",
+                clients, requests.length, seconds, total, errors, total / (double) seconds));
+            long sum = 0;
+            for (long latency : all) sum += latency;
+            report.append(String.format(Locale.ROOT, "Latency us: mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                total == 0 ? 0 : sum / 1e3 / total, percentile(all, 0.5), percentile(all, 0.9), percentile(all, 0.99),
+                percentile(all, 0.999), total == 0 ? 0 : all[total - 1] / 1e3));
+            if (server != null) {
+                report.append(String.format("%nServer: %d requests, %d coalesced. Cache: %s", server.requests(), server.coalesced(), server.cache()));
+            }
+            return report.toString();
+        } finally {
+            if (server != null) server.stop();
+        }
+    }
+    
+    //The latency at or under which a fraction q of the sorted latencies are, in microseconds
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min((int) Math.ceil(q * sorted.length) - 1, sorted.length - 1)] / 1e3;
+    }
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ExpLoad load = new ExpLoad();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-h": load.host = args[i + 1]; break;
+                case "-p": load.port = Integer.parseInt(args[i + 1]); break;
+                case "-c": load.clients = Math.max(Integer.parseInt(args[i + 1]), 1); break;
+                case "-d": load.seconds = Math.max(Integer.parseInt(args[i + 1]), 1); break;
+                case "-w": load.warmupSeconds = Math.max(Integer.parseInt(args[i + 1]), 0); break;
+                case "-n": load.distinct = Integer.parseInt(args[i + 1]); break;
+                case "-s": load.size = Integer.parseInt(args[i + 1]); break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        System.out.println(load.run());
+    }
+}
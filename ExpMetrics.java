@@ -0,0 +1,144 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* Counts everything ExpTree reports: how many times each operator is worked out, how long parsing and evaluating
+* take in each notation, how many evaluations overflow or divide by zero, and how big and deep the parsed trees
+* are. Every counter is a LongAdder, so threads counting at the same time don't fight over one memory location,
+* and nothing ever locks. The size, depth and operator counts of a tree are worked out once per tree, the first
+* time they're needed, so counting an evaluation costs a few additions whatever the size of the tree.
+* Install one with ExpTree.setListener(new ExpMetrics()), and read it from any thread while it's counting.
+*/
+public class ExpMetrics implements ExpListener {
+    
+    //Counts of values in buckets by powers of 2: bucket 0 is for 0, and bucket b for 2^(b-1) up to 2^b - 1
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder sum = new LongAdder();
+        
+        //Constructor
+        Histogram() { for (int b = 0; b < buckets.length; b++) buckets[b] = new LongAdder(); }
+        
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+        }
+        
+        public long count() {
+            long n = 0;
+            for (LongAdder bucket : buckets) n += bucket.sum();
+            return n;
+        }
+        
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+        
+        //Gives a value at least as big as the fraction q of the values recorded (the top of the bucket it's in),
+        //so percentile(0.99) is at most twice the real 99th percentile
+        public long percentile(double q) {
+            long[] counts = new long[buckets.length];
+            long n = 0;
+            for (int b = 0; b < buckets.length; b++) n += counts[b] = buckets[b].sum();
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen > 0 && seen >= q * n) return b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : (1L << b) - 1;
+            }
+            return 0;
+        }
+        
+        public String toString() {
+            return String.format(Locale.ROOT, "count %d, mean %.1f, p50 <= %d, p99 <= %d", count(), mean(), percentile(0.5), percentile(0.99));
+        }
+    }
+    
+    private final LongAdder[] operations = new LongAdder[ExpTree.OPERATORS.length()];
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder divisionsByZero = new LongAdder();
+    private final ConcurrentHashMap<String, Histogram> parseNanos = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentHashMap<String, Histogram> evalNanos = new ConcurrentHashMap<String, Histogram>();
+    private final Histogram sizes = new Histogram();
+    private final Histogram depths = new Histogram();
+    
+    //Constructor
+    public ExpMetrics() { for (int i = 0; i < operations.length; i++) operations[i] = new LongAdder(); }
+    
+    public void parsed(ExpTree tree, String notation, boolean valid, long nanos) {
+        parses.increment();
+        parseNanos.computeIfAbsent(notation, n -> new Histogram()).record(nanos);
+        if (!valid) {
+            invalid.increment();
+            return;
+        }
+        sizes.record(tree.size());
+        depths.record(tree.depth());
+    }
+    
+    public void evaluated(ExpTree tree, String notation, long rows, long overflowed, long dividedByZero, long nanos) {
+        evaluations.add(rows);
+        if (overflowed != 0) overflows.add(overflowed);
+        if (dividedByZero != 0) divisionsByZero.add(dividedByZero);
+        evalNanos.computeIfAbsent(notation, n -> new Histogram()).record(nanos);
+        long[] profile = tree.profile();
+        for (int i = 0; i < operations.length; i++) {
+            if (profile[i] != 0) operations[i].add(profile[i] * rows);
+        }
+    }
+    
+    //How many times an operator has been worked out
+    public long operations(char op) {
+        int i = ExpTree.OPERATORS.indexOf(op);
+        return i < 0 ? 0 : operations[i].sum();
+    }
+    
+    //How many inputs have been parsed, and how many of those were invalid
+    public long parses() { return parses.sum(); }
+    
+    public long invalidParses() { return invalid.sum(); }
+    
+    //How many evaluations there have been, counting each row of a table as one
+    public long evaluations() { return evaluations.sum(); }
+    
+    public long overflows() { return overflows.sum(); }
+    
+    public long divisionsByZero() { return divisionsByZero.sum(); }
+    
+    //How long parsing took in nanoseconds, for inputs in a notation, or null if there haven't been any
+    public Histogram parseTime(String notation) { return parseNanos.get(notation); }
+    
+    //How long each call that evaluated an expression in a notation took in nanoseconds, or null if there haven't been any
+    public Histogram evalTime(String notation) { return evalNanos.get(notation); }
+    
+    //How many nodes valid trees have, and how many levels
+    public Histogram sizes() { return sizes; }
+    
+    public Histogram depths() { return depths; }
+    
+    //Gives a report of everything counted so far
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append("Parsed ").append(parses()).append(" (").append(invalidParses()).append(" invalid), evaluated ").append(evaluations())
+            .append(" (").append(overflows()).append(" overflowed, ").append(divisionsByZero()).append(" divided by zero)\n");
+        out.append("Operations:");
+        for (int i = 0; i < operations.length; i++) out.append(' ').append(ExpTree.OPERATORS.charAt(i)).append(' ').append(operations[i].sum());
+        out.append('\n');
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(parseNanos).entrySet()) {
+            out.append("Parse ns, ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(evalNanos).entrySet()) {
+            out.append("Eval ns, ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        out.append("Nodes: ").append(sizes).append('\n');
+        out.append("Depth: ").append(depths);
+        return out.toString();
+    }
+}
@@ -0,0 +1,316 @@
+import java.util.Arrays;
+
+/**
+* A compiled expression: an ExpTree flattened into a postfix program of int instructions.
+* The program runs in a single loop over the instruction array on an operand stack that is
+* allocated once, so running it over and over doesn't allocate or chase any pointers.
+* Get one from ExpTree.compile(). Running it gives exactly what ExpTree.eval() gives, but
+* instead of printing errors it records them, so you can check overflowed() and dividedByZero().
+* Since run() reuses the stack and records the errors in the program, one program shouldn't be run
+* from several threads at once; evaluate() and runBatch() keep everything on the caller's side, so
+* those can be.
+*/
+public class ExpProgram {
+    
+    //Instruction codes. PUSH is followed by the literal it pushes and LOAD by the slot of the variable
+    //it pushes; the rest pop two values and push one.
+    static final int PUSH = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int MOD = 5;
+    static final int POW = 6;
+    static final int LOAD = 7;
+    
+    private final int[] code;
+    private final int[] stack;
+    private int runs; //how many times the program has been run, up to ExpJit.threshold(), or Integer.MAX_VALUE if it can't be promoted
+    private volatile ExpJit.Kernel kernel; //the program as JVM bytecode, once it's hot
+    private final int[] zeros; //a 0 for every variable, used by run()
+    
+    //How many rows runBatch() works on at once
+    static final int BATCH = 1024;
+    private boolean overflow; //turned true if the last run had an integer overflow
+    private boolean divByZero; //turned true if the last run divided by zero
+    
+    //Constructor, used by ExpTree.compile(); maxDepth is the most values the stack ever holds
+    //and slotCount is how many variables the expression has
+    ExpProgram(int[] code, int maxDepth, int slotCount) {
+        this.code = code;
+        stack = new int[Math.max(maxDepth, 1)];
+        zeros = new int[slotCount];
+    }
+    
+    //Gives the instruction code for one of the 6 operators
+    static int opcode(char op) {
+        switch (op) {
+            case '+': return ADD;
+            case '-': return SUB;
+            case '*': return MUL;
+            case '/': return DIV;
+            case '%': return MOD;
+            case '^': return POW;
+            default: throw new IllegalArgumentException("Unrecognized operator: " + op);
+        }
+    }
+    
+    //Gives the number of variables the program reads
+    public int slotCount() { return zeros.length; }
+    
+    //Runs the program with every variable as 0
+    public int run() {
+        return run(zeros);
+    }
+    
+    //Runs the program with slots[i] as the value of the variable in slot i,
+    //and returns the value of the expression, or 0 if it overflowed.
+    //After ExpJit.threshold() runs it gets promoted to JVM bytecode, which gives the same results.
+    public int run(int[] slots) {
+        long packed = execute(slots, stack);
+        overflow = (packed & ExpJit.OVERFLOW) != 0;
+        divByZero = (packed & ExpJit.DIV_BY_ZERO) != 0;
+        int result = (int) packed;
+        return result == Integer.MAX_VALUE ? 0 : result;
+    }
+    
+    //Runs the program like run(slots), but gives everything back in a new ExpResult instead of keeping
+    //it in the program, so any number of threads can evaluate the same program at once
+    public ExpResult evaluate(int[] slots) {
+        long packed = execute(slots, kernel == null ? new int[stack.length] : null);
+        ExpResult result = new ExpResult(-1);
+        result.value = (int) packed;
+        result.overflow = (packed & ExpJit.OVERFLOW) != 0;
+        result.divByZero = (packed & ExpJit.DIV_BY_ZERO) != 0;
+        return result;
+    }
+    
+    //Runs the program on the given stack, or through its kernel if it's been promoted, and gives the raw value
+    //packed with the error flags the way ExpJit.Kernel does. Counting runs isn't synchronized, since a few
+    //lost counts only put off promotion a little.
+    private long execute(int[] slots, int[] stack) {
+        ExpJit.Kernel kernel = this.kernel;
+        if (kernel != null) return kernel.run(slots);
+        if (runs < ExpJit.threshold() && ++runs == ExpJit.threshold()) promote();
+        return interpret(slots, stack);
+    }
+    
+    //Whether the program has been promoted to JVM bytecode
+    public boolean isPromoted() { return kernel != null; }
+    
+    //Promotes the program to JVM bytecode now, without waiting for ExpJit.threshold() runs, and gives
+    //whether it is promoted (programs too big for one JVM method never are)
+    boolean promote() {
+        if (kernel == null && runs != Integer.MAX_VALUE) {
+            kernel = ExpJit.promote(code, stack.length);
+            if (kernel == null) runs = Integer.MAX_VALUE; //it can't be, so it's never tried again
+        }
+        return kernel != null;
+    }
+    
+    //Runs the program one instruction at a time
+    private long interpret(int[] slots, int[] stack) {
+        int[] code = this.code;
+        boolean overflow = false;
+        boolean divByZero = false;
+        int top = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int instruction = code[pc++];
+            if (instruction == PUSH) {
+                stack[top++] = code[pc++];
+                continue;
+            }
+            if (instruction == LOAD) {
+                stack[top++] = slots[code[pc++]];
+                continue;
+            }
+            int b = stack[--top];
+            int a = stack[top - 1];
+            int result;
+            if ((a == Integer.MAX_VALUE | b == Integer.MAX_VALUE) && overflow) result = Integer.MAX_VALUE;
+            else switch (instruction) {
+                case ADD:
+                    result = a + b;
+                    if (((a ^ result) & (b ^ result)) < 0) {
+                        overflow = true;
+                        result = Integer.MAX_VALUE;
+                    }
+                    break;
+                case SUB:
+                    int negB = -b; //same as Math.addExact(a, -b), which eval() uses
+                    result = a + negB;
+                    if (((a ^ result) & (negB ^ result)) < 0) {
+                        overflow = true;
+                        result = Integer.MAX_VALUE;
+                    }
+                    break;
+                case MUL:
+                    long product = (long) a * b;
+                    result = (int) product;
+                    if (result != product) {
+                        overflow = true;
+                        result = Integer.MAX_VALUE;
+                    }
+                    break;
+                case DIV:
+                    if (b == 0) {
+                        divByZero = true;
+                        result = 0;
+                    } else result = a / b;
+                    break;
+                case MOD:
+                    if (b == 0) {
+                        divByZero = true;
+                        result = 0;
+                    } else result = a % b;
+                    break;
+                default:
+                    result = (int) Math.pow(a, b);
+                    if (result == Integer.MAX_VALUE) overflow = true;
+            }
+            stack[top - 1] = result;
+        }
+        long flags = (overflow ? ExpJit.OVERFLOW : 0) | (divByZero ? ExpJit.DIV_BY_ZERO : 0);
+        return (top == 0 ? 0 : stack[0] & 0xFFFFFFFFL) | flags;
+    }
+    
+    //Runs the program once for every row of a table, where columns[i][row] is the value of the variable
+    //in slot i. Each row's value goes into out[row], or 0 if that row overflows or divides by zero.
+    //Returns how many rows had errors.
+    public int run(int[][] columns, int[] out) {
+        long[] overflowMask = new long[(out.length + 63) / 64];
+        long[] divByZeroMask = new long[overflowMask.length];
+        runBatch(columns, out, overflowMask, divByZeroMask);
+        return clearErrors(out, overflowMask, divByZeroMask);
+    }
+    
+    //Puts 0 in every row of out marked in either mask, and returns how many there were
+    static int clearErrors(int[] out, long[] overflowMask, long[] divByZeroMask) {
+        int errors = 0;
+        for (int w = 0; w < overflowMask.length; w++) {
+            long bad = overflowMask[w] | divByZeroMask[w];
+            errors += Long.bitCount(bad);
+            while (bad != 0) {
+                out[w * 64 + Long.numberOfTrailingZeros(bad)] = 0;
+                bad &= bad - 1;
+            }
+        }
+        return errors;
+    }
+    
+    //Runs the program for every row of a table like run(columns, out), but a whole chunk of rows at a time:
+    //each instruction is applied across BATCH rows in one simple loop before moving on to the next,
+    //which the JIT can turn into SIMD code. out[row] gets exactly what eval() would give for that row.
+    //Bit (row % 64) of overflowMask[row / 64] is set if the row overflowed, and the same goes for
+    //divByZeroMask; both need at least (out.length + 63) / 64 words and are cleared first.
+    public void runBatch(int[][] columns, int[] out, long[] overflowMask, long[] divByZeroMask) {
+        int words = (out.length + 63) / 64;
+        Arrays.fill(overflowMask, 0, words, 0L);
+        Arrays.fill(divByZeroMask, 0, words, 0L);
+        //per-row stacks, made for each call so several threads can run batches at once
+        int size = Math.min(BATCH, out.length);
+        int[][] lanes = new int[stack.length][size];
+        int[] laneOverflow = new int[size];
+        int[] laneDivByZero = new int[size];
+        for (int start = 0; start < out.length; start += BATCH) {
+            int n = Math.min(BATCH, out.length - start);
+            runChunk(columns, start, n, lanes, laneOverflow, laneDivByZero);
+            int[] result = lanes[0];
+            for (int i = 0; i < n; i++) {
+                int row = start + i;
+                out[row] = code.length == 0 || result[i] == Integer.MAX_VALUE ? 0 : result[i];
+                overflowMask[row >>> 6] |= (long) laneOverflow[i] << row;
+                divByZeroMask[row >>> 6] |= (long) laneDivByZero[i] << row;
+            }
+        }
+    }
+    
+    //Runs the whole program over rows [start, start + n) of the columns, leaving the values in lanes[0]
+    //and each row's errors in ovf and dz (1 for an error, 0 otherwise)
+    private void runChunk(int[][] columns, int start, int n, int[][] lanes, int[] ovf, int[] dz) {
+        final int max = Integer.MAX_VALUE;
+        Arrays.fill(ovf, 0, n, 0);
+        Arrays.fill(dz, 0, n, 0);
+        int top = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int instruction = code[pc++];
+            if (instruction == PUSH) {
+                Arrays.fill(lanes[top++], 0, n, code[pc++]);
+                continue;
+            }
+            if (instruction == LOAD) {
+                System.arraycopy(columns[code[pc++]], start, lanes[top++], 0, n);
+                continue;
+            }
+            int[] x = lanes[top - 2];
+            int[] y = lanes[top - 1];
+            top--;
+            //stuck is 1 for rows that already overflowed and have a big value coming in, like eval()'s check
+            switch (instruction) {
+                case ADD:
+                    for (int i = 0; i < n; i++) {
+                        int a = x[i], b = y[i];
+                        int stuck = ovf[i] & ((a == max | b == max) ? 1 : 0);
+                        int r = a + b;
+                        int o = (((a ^ r) & (b ^ r)) >>> 31) & ~stuck;
+                        ovf[i] |= o;
+                        x[i] = (stuck | o) != 0 ? max : r;
+                    }
+                    break;
+                case SUB:
+                    for (int i = 0; i < n; i++) {
+                        int a = x[i], b = -y[i];
+                        int stuck = ovf[i] & ((a == max | y[i] == max) ? 1 : 0);
+                        int r = a + b;
+                        int o = (((a ^ r) & (b ^ r)) >>> 31) & ~stuck;
+                        ovf[i] |= o;
+                        x[i] = (stuck | o) != 0 ? max : r;
+                    }
+                    break;
+                case MUL:
+                    for (int i = 0; i < n; i++) {
+                        int a = x[i], b = y[i];
+                        int stuck = ovf[i] & ((a == max | b == max) ? 1 : 0);
+                        long p = (long) a * b;
+                        int o = ((int) p != p ? 1 : 0) & ~stuck;
+                        ovf[i] |= o;
+                        x[i] = (stuck | o) != 0 ? max : (int) p;
+                    }
+                    break;
+                case DIV:
+                case MOD:
+                    boolean mod = instruction == MOD;
+                    for (int i = 0; i < n; i++) {
+                        int a = x[i], b = y[i];
+                        int stuck = ovf[i] & ((a == max | b == max) ? 1 : 0);
+                        int zero = (b == 0 ? 1 : 0) & ~stuck;
+                        dz[i] |= zero;
+                        int d = b == 0 ? 1 : b;
+                        int r = mod ? a % d : a / d;
+                        x[i] = stuck != 0 ? max : zero != 0 ? 0 : r;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        int a = x[i], b = y[i];
+                        if ((ovf[i] != 0) & (a == max | b == max)) {
+                            x[i] = max;
+                            continue;
+                        }
+                        int r = (int) Math.pow(a, b);
+                        if (r == max) ovf[i] = 1;
+                        x[i] = r;
+                    }
+            }
+        }
+        if (code.length == 0) Arrays.fill(lanes[0], 0, n, 0);
+    }
+    
+    //Whether the last run had an integer overflow
+    public boolean overflowed() { return overflow; }
+    
+    //Whether the last run divided by zero
+    public boolean dividedByZero() { return divByZero; }
+}
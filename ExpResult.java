@@ -0,0 +1,89 @@
+/**
+* The result of evaluating an expression once: its value, whether it overflowed or divided by zero,
+* and if asked for, the value of every node in the tree. kind() says what went wrong, if anything,
+* and for an invalid expression offset() says where in the input, so nothing has to be printed.
+* Every evaluation makes its own ExpResult, so evaluating never changes the tree itself and
+* one tree can be evaluated by many threads at once.
+*/
+public class ExpResult {
+    
+    //What can go wrong. The binary format stores these by their order, so new ones go at the end.
+    public enum Kind {
+        NONE, //nothing did
+        INVALID, //the expression is invalid, for a reason that wasn't recorded
+        ILLEGAL_CHARACTER, //a character no notation allows
+        NUMBER_TOO_BIG, //a number bigger than 2147483647
+        NO_NOTATION, //the input doesn't look like prefix, infix or postfix
+        MISSING_SPACE, //two tokens touch in prefix or postfix, which need spaces between them
+        MISSING_OPERAND, //an operator without both of its operands
+        MISSING_OPERATOR, //two operands with no operator to join them
+        UNEXPECTED_PARENTHESIS, //a parenthesis in prefix or postfix
+        UNBALANCED_PARENTHESES, //a parenthesis without its partner
+        DIVISION_BY_ZERO,
+        OVERFLOW
+    }
+    
+    int value; //the raw value of the root, Integer.MAX_VALUE after an overflow
+    boolean valid = true; //turned false if the expression was invalid to begin with
+    boolean overflow; //turned true if there's an integer overflow
+    boolean divByZero; //turned true if something was divided by zero
+    final int[] nodeValues; //indexed by node id, or null if they weren't asked for
+    Number number; //the exact value, only when evaluated in an ExpDomain
+    Kind invalidKind; //why the expression is invalid, if it is and the reason is known
+    long offset = -1; //where in the input it went wrong, counting characters from 0, if it's invalid
+    
+    //Constructor, nodeCount is how many node values to keep, or -1 for none
+    ExpResult(int nodeCount) { nodeValues = nodeCount < 0 ? null : new int[nodeCount]; }
+    
+    //Gives the value of the expression just like eval() does: 0 if it's invalid or overflowed.
+    //When it was evaluated in an ExpDomain, it's also 0 if the value doesn't fit in an int.
+    public int value() {
+        if (!valid || value == Integer.MAX_VALUE) return 0;
+        return value;
+    }
+    
+    //Gives the exact value when the expression was evaluated in an ExpDomain (an Integer, Long or BigInteger),
+    //or null if it wasn't, or it's invalid or overflowed
+    public Number number() { return number; }
+    
+    //Whether the expression was valid
+    public boolean isValid() { return valid; }
+    
+    //Whether there was an integer overflow
+    public boolean overflowed() { return overflow; }
+    
+    //Whether something was divided by zero
+    public boolean dividedByZero() { return divByZero; }
+    
+    //Whether the value can be trusted
+    public boolean isOk() { return valid && !overflow && !divByZero; }
+    
+    //What went wrong, or NONE. A division by zero comes before an overflow, like in error().
+    public Kind kind() {
+        if (!valid) return invalidKind != null ? invalidKind : Kind.INVALID;
+        if (divByZero) return Kind.DIVISION_BY_ZERO;
+        if (overflow) return Kind.OVERFLOW;
+        return Kind.NONE;
+    }
+    
+    //Where in the input the expression went wrong, counting characters from 0, or -1 if it's valid or
+    //nobody knows. Something missing at the very end is at the length of the input.
+    public long offset() { return valid ? -1 : offset; }
+    
+    //Describes what went wrong, or gives null if nothing did
+    public String error() {
+        if (!valid) return "Invalid expression; can't evaluate.";
+        if (divByZero) return "Error: division by zero";
+        if (overflow) return "Integer overflow; can't evaluate.";
+        return null;
+    }
+    
+    //Gives the value a node had, if node values were kept
+    int nodeValue(int id) { return nodeValues[id]; }
+    
+    public String toString() {
+        String error = error();
+        if (error != null) return error;
+        return number != null ? number.toString() : Integer.toString(value);
+    }
+}
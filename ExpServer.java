@@ -0,0 +1,244 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* A local HTTP server that evaluates expressions, for programs that would otherwise run doItAll() and read
+* what it prints. GET /eval?expr=... (or POST /eval with the expression as the body) answers with JSON: the
+* notation, the expression in prefix, postfix and infix, and the value, or what went wrong and where, counting
+* characters from the start of the expression as sent.
+* Any other query parameters are values for variables: /eval?expr=x*x%2B1&x=3. The query is form-encoded,
+* so a + in an expression has to be sent as %2B; a plain + is a space.
+* Parsing goes through a shared ExpTreeCache. When identical requests come in at the same time, only the
+* first is worked out and the others wait for its answer. GET /stats gives the counts as JSON.
+* Every request runs on its own virtual thread when the JVM has them (Java 21 and up), and on a pool of
+* ordinary threads that grows as needed otherwise. It only listens on the loopback address.
+* ExpLoad measures how fast it answers.
+*/
+public class ExpServer {
+    
+    //The JDK's server writes headers and body separately, and without this each answer waits out a delayed ACK
+    //(about 40ms) before its body goes. It's read once, when the first server starts, so it's set up front.
+    static {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    
+    private final HttpServer server;
+    private final ExpTreeCache cache;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<List<Object>, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<List<Object>, CompletableFuture<byte[]>>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder(); //requests answered with another request's work
+    private final LongAdder rejected = new LongAdder(); //requests that got a 4xx or 5xx
+    
+    //Constructors; port 0 picks a free one
+    public ExpServer(int port, ExpTreeCache cache) throws IOException {
+        this.cache = cache;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.createContext("/eval", this::eval);
+        server.createContext("/stats", this::stats);
+        executor = newExecutor();
+        server.setExecutor(executor);
+    }
+    
+    public ExpServer(int port) throws IOException { this(port, new ExpTreeCache()); }
+    
+    //A virtual thread per task if the JVM has them. It's looked up by name, so this still compiles on Java 17.
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    public void start() { server.start(); }
+    
+    //Stops taking requests, gives the ones being handled up to a second to finish, and ends the threads
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+    
+    //The port it listens on
+    public int port() { return server.getAddress().getPort(); }
+    
+    public long requests() { return requests.sum(); }
+    
+    public long coalesced() { return coalesced.sum(); }
+    
+    public ExpTreeCache cache() { return cache; }
+    
+    private void eval(HttpExchange exchange) throws IOException {
+        try {
+            requests.increment();
+            LinkedHashMap<String, String> params = query(exchange.getRequestURI().getRawQuery());
+            String input;
+            if (exchange.getRequestMethod().equals("POST")) {
+                try (InputStream in = exchange.getRequestBody()) {
+                    input = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+                }
+            } else input = params.get("expr");
+            params.remove("expr");
+            if (input == null) {
+                fail(exchange, 400, "No expression; send /eval?expr=... or POST it");
+                return;
+            }
+            LinkedHashMap<String, Integer> values = new LinkedHashMap<String, Integer>();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                try {
+                    values.put(param.getKey(), Integer.parseInt(param.getValue().trim()));
+                } catch (NumberFormatException e) {
+                    fail(exchange, 400, "The value of " + param.getKey() + " isn't an int");
+                    return;
+                }
+            }
+            //The first request for something works it out; the same request coming in meanwhile waits for it
+            List<Object> key = key(input, values);
+            CompletableFuture<byte[]> mine = new CompletableFuture<byte[]>();
+            CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, mine);
+            byte[] body;
+            if (running != null) {
+                coalesced.increment();
+                body = running.join();
+            } else {
+                try {
+                    body = answer(input, values).getBytes(StandardCharsets.UTF_8);
+                    mine.complete(body);
+                } catch (RuntimeException e) {
+                    mine.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, mine);
+                }
+            }
+            send(exchange, 200, body);
+        } catch (RuntimeException e) {
+            fail(exchange, 500, String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"requests\":").append(requests.sum()).append(",\"coalesced\":").append(coalesced.sum())
+                .append(",\"rejected\":").append(rejected.sum()).append(",\"cacheEntries\":").append(cache.size())
+                .append(",\"cacheHits\":").append(cache.hits()).append(",\"cacheMisses\":").append(cache.misses()).append("}\n");
+            send(exchange, 200, json.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    //What identical requests have in common: the input as sent, since the answer echoes it and counts error
+    //offsets in it, then each variable and its value, sorted by name. They're separate elements, so no input
+    //can pass for another input with other values, whatever characters it has.
+    static List<Object> key(String input, Map<String, Integer> values) {
+        ArrayList<Object> key = new ArrayList<Object>(1 + 2 * values.size());
+        key.add(input);
+        for (Map.Entry<String, Integer> value : new TreeMap<String, Integer>(values).entrySet()) {
+            key.add(value.getKey());
+            key.add(value.getValue());
+        }
+        return key;
+    }
+    
+    //Parses, evaluates and writes everything about an expression as JSON. Nothing is printed along the way.
+    String answer(String input, Map<String, Integer> values) {
+        ExpTree tree = cache.get(input);
+        for (Map.Entry<String, Integer> value : values.entrySet()) tree.bind(value.getKey(), value.getValue());
+        StringBuilder json = new StringBuilder(64 + 4 * input.length());
+        json.append("{\"input\":");
+        quote(json, input);
+        json.append(",\"notation\":\"").append(tree.notationName()).append('"');
+        if (tree.isValid() && tree.size() > 0) {
+            //written before evaluating, since a division by zero makes the tree count as invalid
+            try {
+                json.append(",\"prefix\":\"");
+                tree.prefix(json);
+                json.append("\",\"postfix\":\"");
+                tree.postfix(json);
+                json.append("\",\"infix\":\"");
+                tree.infix(json, false);
+                json.append('"');
+            } catch (IOException e) {
+                //a StringBuilder never throws it
+            }
+        }
+        int value = tree.eval();
+        ExpResult result = tree.result();
+        ExpResult.Kind kind = result == null ? ExpResult.Kind.NONE : result.kind();
+        if (kind == ExpResult.Kind.NONE) json.append(",\"value\":").append(value).append(",\"error\":null");
+        else {
+            json.append(",\"value\":null,\"error\":\"").append(kind).append('"');
+            if (result.offset() >= 0) json.append(",\"offset\":").append(result.offset());
+        }
+        return json.append("}\n").toString();
+    }
+    
+    //Splits a raw query into its decoded names and values, in order
+    private static LinkedHashMap<String, String> query(String raw) {
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+    
+    //Writes s as a JSON string
+    static void quote(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < ' ') json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+    
+    private void fail(HttpExchange exchange, int status, String message) throws IOException {
+        rejected.increment();
+        StringBuilder json = new StringBuilder("{\"error\":");
+        quote(json, message);
+        send(exchange, status, json.append("}\n").toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    //Starts a server on the port given (8080 if none) and keeps it running until the JVM is stopped
+    public static void main(String[] args) throws IOException {
+        ExpServer server = new ExpServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.start();
+        System.out.println("Evaluating expressions at http://127.0.0.1:" + server.port() + "/eval?expr=...");
+    }
+}
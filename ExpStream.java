@@ -0,0 +1,204 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+* Evaluates a postfix expression as it's read, without ever building a tree or holding the input.
+* Tokens are taken from a Reader or a channel a buffer at a time and applied to an operand stack
+* right away, so the memory used depends on how deep the stack gets, not on how long the input is;
+* a postfix dump of several gigabytes evaluates in a few kilobytes.
+* Tokens are separated by any whitespace, including newlines, so a dump written a line at a time (or just
+* ending in a newline) reads fine; that's the one place it's looser than ExpTree, which only takes spaces.
+* Numbers, variables and the 6 operators work just like in ExpTree, and the value and errors are exactly
+* what eval() would give. A variable name is only kept for as
+* long as it could still be a bound name, so one huge token doesn't take huge memory either.
+* The input stops being read as soon as it's known to be invalid.
+*/
+public class ExpStream {
+    
+    //Gets told how far along the stream is: characters and tokens read so far, and the stack depth
+    interface Progress {
+        void update(long chars, long tokens, int depth);
+    }
+    
+    private final HashMap<String, Integer> bindings = new HashMap<String, Integer>();
+    private int longestName; //the longest bound name; any longer name isn't bound, so it's worth 0
+    private Progress progress;
+    private long progressEvery = 1 << 26; //how many characters between progress updates
+    private final char[] buffer = new char[1 << 16];
+    private final ByteBuffer bytes = ByteBuffer.allocate(1 << 16); //only used for channels
+    private long chars; //characters read by the last evaluation
+    private long tokens; //tokens read by the last evaluation
+    private int maxDepth; //the deepest the stack got in the last evaluation
+    
+    //Sets the value a variable has; variables that aren't bound are worth 0, just like in ExpTree
+    public void bind(String name, int value) {
+        bindings.put(name, value);
+        longestName = Math.max(longestName, name.length());
+    }
+    
+    //Sets the values of several variables at once
+    public void bind(Map<String, Integer> values) {
+        for (Map.Entry<String, Integer> value : values.entrySet()) bind(value.getKey(), value.getValue());
+    }
+    
+    //Asks for progress updates about every so many characters, and once more at the end
+    public void setProgress(Progress progress, long everyChars) {
+        this.progress = progress;
+        progressEvery = Math.max(everyChars, 1);
+    }
+    
+    //Evaluates the postfix expression a Reader gives, reading it to the end unless it turns out invalid
+    public ExpResult evaluate(Reader in) throws IOException { return evaluate(in, null); }
+    
+    //Evaluates the postfix expression a channel gives, which should be ASCII (or UTF-8, since only
+    //ASCII characters can be valid anyway)
+    public ExpResult evaluate(ReadableByteChannel in) throws IOException { return evaluate(null, in); }
+    
+    //Reads the next buffer full of characters from whichever input there is, giving how many were read or -1 at the end
+    private int read(Reader reader, ReadableByteChannel channel) throws IOException {
+        if (reader != null) return reader.read(buffer, 0, buffer.length);
+        bytes.clear();
+        int n;
+        do {
+            n = channel.read(bytes);
+        } while (n == 0);
+        for (int i = 0; i < n; i++) buffer[i] = (char) (bytes.get(i) & 0xFF);
+        return n;
+    }
+    
+    //Reads tokens one by one, applying each to the stack as soon as it's complete
+    private ExpResult evaluate(Reader reader, ReadableByteChannel channel) throws IOException {
+        ExpResult result = new ExpResult(-1);
+        chars = 0;
+        tokens = 0;
+        maxDepth = 0;
+        int[] stack = new int[64];
+        int top = 0;
+        long nextUpdate = progressEvery;
+        //the token being read, which can be split between two buffers
+        long number = -1; //the digits so far, or -1 if it's not a number
+        StringBuilder name = new StringBuilder(); //the characters so far, if it's a variable, up to one more than longestName
+        char op = 0; //the operator, if it's one
+        boolean inToken = false;
+        boolean bad = false; //turned true if the token can't be valid
+        boolean done = false;
+        while (!done) {
+            int n = read(reader, channel);
+            if (n < 0) {
+                n = 0;
+                done = true;
+            }
+            //one extra round at the end, with a space, finishes the last token
+            for (int i = 0; i <= n; i++) {
+                char c = i < n ? buffer[i] : ' ';
+                if (i == n && !done) break;
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                    if (!inToken) continue;
+                    inToken = false;
+                    tokens++;
+                    if (bad) {
+                        result.valid = false;
+                        break;
+                    }
+                    if (op != 0) {
+                        if (top < 2) {
+                            result.valid = false;
+                            break;
+                        }
+                        int b = stack[--top];
+                        stack[top - 1] = ExpTree.apply(op, stack[top - 1], b, result, false, false);
+                    } else {
+                        if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                        if (number >= 0) stack[top++] = (int) number;
+                        else {
+                            Integer value = bindings.get(name.toString());
+                            stack[top++] = value == null ? 0 : value;
+                        }
+                        maxDepth = Math.max(maxDepth, top);
+                    }
+                    continue;
+                }
+                if (!inToken) {
+                    //a new token starts
+                    inToken = true;
+                    bad = false;
+                    op = 0;
+                    number = -1;
+                    name.setLength(0);
+                    if (c >= '0' && c <= '9') number = c - '0';
+                    else if (isNameStart(c)) name.append(c);
+                    else if (isOp(c)) op = c;
+                    else bad = true;
+                    continue;
+                }
+                //the token goes on, which is only allowed for numbers and names
+                if (number >= 0 && c >= '0' && c <= '9') {
+                    number = number * 10 + (c - '0');
+                    if (number > Integer.MAX_VALUE) bad = true; //too big, like in ExpTree
+                    if (bad) number = 0; //keeps it from overflowing the long
+                } else if (number < 0 && op == 0 && !bad && isNamePart(c)) {
+                    if (name.length() <= longestName) name.append(c);
+                } else bad = true;
+            }
+            if (!result.valid) break;
+            chars += n;
+            if (progress != null && chars >= nextUpdate) {
+                progress.update(chars, tokens, top);
+                nextUpdate = chars + progressEvery;
+            }
+        }
+        if (progress != null) progress.update(chars, tokens, top);
+        if (top != 1) result.valid = false;
+        if (result.valid) result.value = stack[0];
+        else {
+            //like an invalid ExpTree, there's no value to have had errors
+            result.overflow = false;
+            result.divByZero = false;
+        }
+        return result;
+    }
+    
+    //The same rules ExpTree uses for operators and variable names
+    private static boolean isOp(char c) {
+        switch (c) {
+            case '+': case '-': case '*': case '/': case '^': case '%': return true;
+            default: return false;
+        }
+    }
+    
+    private static boolean isNameStart(char c) { return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'; }
+    
+    private static boolean isNamePart(char c) { return isNameStart(c) || (c >= '0' && c <= '9'); }
+    
+    //How many characters the last evaluation read
+    public long chars() { return chars; }
+    
+    //How many tokens the last evaluation read
+    public long tokens() { return tokens; }
+    
+    //The deepest the operand stack got in the last evaluation, which is all the memory it needed
+    public int maxDepth() { return maxDepth; }
+    
+    //Evaluates a postfix file given on the command line, or whatever comes in on standard input,
+    //printing progress every 64MB
+    public static void main(String[] args) throws IOException {
+        ExpStream stream = new ExpStream();
+        final long start = System.nanoTime();
+        stream.setProgress((chars, tokens, depth) -> System.err.println("Read " + (chars >> 20) + "MB, " + tokens +
+            " tokens, stack depth " + depth + ", " + (System.nanoTime() - start) / 1000000 + "ms"), 1 << 26);
+        ExpResult result;
+        if (args.length > 0) {
+            try (FileInputStream file = new FileInputStream(args[0])) {
+                result = stream.evaluate(file.getChannel());
+            }
+        } else result = stream.evaluate(Channels.newChannel(System.in));
+        System.out.println(result);
+    }
+}
@@ -1,7 +1,14 @@
-import java.util.Stack;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
 * This class creates a binary expression tree from a mathematical expression given by the user.
@@ -12,390 +19,1481 @@ import java.util.Scanner;
 */
 public class ExpTree {
     
-    //Node class for the tree, stores an operation and/or value and left and right children
-    private class ExpTreeNode {
-        public char op;
-        public int val;
-        public ExpTreeNode left;
-        public ExpTreeNode right;
+    //The nodes of a tree, kept in parallel arrays indexed by node id instead of as an object each, so even a
+    //tree of millions of nodes is only a few arrays for the garbage collector to look at, and walking it reads
+    //memory in order. A node is just its id: ids go from 0, children before parents.
+    //Nodes never change once they're added, so a tree can be shared by any number of threads;
+    //the values found while evaluating go in an ExpResult instead.
+    private static class NodeArena {
+        public byte[] op; //the operator, or ' ' for a number and '$' for a variable
+        public int[] val; //the number, or the slot of the variable
+        public int[] left; //the id of the left child, or -1 for a leaf
+        public int[] right; //the id of the right child, or -1 for a leaf
+        public int size;
         
-        //Constructors
-        ExpTreeNode(int n) {
-            val = n;
-            op = ' ';
-            left = null;
-            right = null;
+        //Constructor, capacity is how many nodes it can hold before it has to grow
+        NodeArena(int capacity) {
+            capacity = Math.max(capacity, 4);
+            op = new byte[capacity];
+            val = new int[capacity];
+            left = new int[capacity];
+            right = new int[capacity];
         }
         
-        ExpTreeNode(char c, ExpTreeNode le, ExpTreeNode ri) {
-            val = 0;
-            op = c;
-            left = le;
-            right = ri;
+        //Adds a node and gives its id
+        int add(char c, int v, int le, int ri) {
+            if (size == op.length) resize(size * 2);
+            op[size] = (byte) c;
+            val[size] = v;
+            left[size] = le;
+            right[size] = ri;
+            return size++;
         }
         
-        boolean isLeaf() { return op == ' '; }
+        //Makes the arrays exactly as long as the nodes need
+        void trim() { if (size < op.length) resize(Math.max(size, 4)); }
         
-        public String toString() {
-            if (isLeaf()) return Integer.toString(val);
-            return Character.toString(op);
+        private void resize(int capacity) {
+            op = Arrays.copyOf(op, capacity);
+            val = Arrays.copyOf(val, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
         }
     }
     
-    //Used for iterating through prefix, just wraps an integer so it can keep increasing
-    private class Position {
-        public int val;
+    //What makes two nodes the same when sharing subtrees: the operator (' ' for a number and '$' for a
+    //variable), and either the leaf's value or slot or the ids of the two children, which are already shared
+    private static class Shape {
+        private final char op;
+        private final int a;
+        private final int b;
         
-        //Constructors
-        Position(int i) { val = i; }
+        //Constructor
+        Shape(char op, int a, int b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+        
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) return false;
+            Shape s = (Shape) o;
+            return op == s.op && a == s.a && b == s.b;
+        }
+        
+        public int hashCode() { return (op * 31 + a) * 31 + b; }
+    }
+    
+    //Used for walking the tree without recursion, so very deep trees can't overflow the call stack.
+    //It's a stack of node ids that each remember their stage: 0 before visiting the left child,
+    //1 before visiting the right child, and 2 once both children are done.
+    private class Walk {
+        private int[] nodes = new int[32];
+        private int[] stages = new int[32];
+        private int size;
+        
+        //Constructor
+        Walk(int start) { if (start >= 0) push(start); }
+        
+        boolean isEmpty() { return size == 0; }
+        
+        int node() { return nodes[size - 1]; }
         
-        Position() { val = 0; }
+        //Moves the top node on to its next stage, returning the stage it was in
+        int advance() { return stages[size - 1]++; }
+        
+        void push(int node) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                stages = Arrays.copyOf(stages, size * 2);
+            }
+            nodes[size] = node;
+            stages[size++] = 0;
+        }
+        
+        void pop() { size--; }
+        
+        //The stage of the top node, after advance()
+        int stage() { return stages[size - 1]; }
+        
+        //The node under the top one, which is its parent, or -1 if the top is where the walk started
+        int parent() { return size > 1 ? nodes[size - 2] : -1; }
+        
+        //The stage of the parent: 1 while the top node is its left child, 2 while it's the right
+        int parentStage() { return stages[size - 2]; }
     }
     
-    private ExpTreeNode root;
+    private NodeArena arena = new NodeArena(0); //every node of the tree
+    private int root = -1; //the id of the root, or -1 if the tree is empty
+    private int treeNodes; //how many nodes the tree would have if no subtrees were shared
+    private boolean shared; //turned true if identical subtrees were built only once, making the tree a DAG
+    private boolean validInput = true; //turned false if the input isn't a valid expression
     private boolean validExp = true; //turned false if some method realizes the input is invalid
-    private boolean allDrawn = true; //turned false if not everything fits in the drawing
-    private boolean evaluated = false; //turned true once it's evaluated
-    private boolean overflow = false; //turned true if there's an integer overflow
     private String NotationDet; //initialized when the program decides what notation the input uses
+    private ExpResult.Kind parseError = ExpResult.Kind.NONE; //why the input is invalid, if it is
+    private int parseErrorAt = -1; //where in the input it went wrong, if it did
+    private ArrayList<String> variables = new ArrayList<String>(); //variable names, in order of slot
+    //The parts above make up the parsed expression and never change once fill() is done, so copies share them.
+    //The rest belongs to just this ExpTree.
+    private ExpResult last; //the result of the last eval(), used for drawing and instructions
+    private int[] bindings = new int[0]; //the value of each variable used by eval(), 0 until bound
+    private Lexer lexer = new Lexer(); //reused for every input, so scanning doesn't allocate
+    private HashMap<Shape, Integer> interned; //every distinct node built so far, only while filling a shared tree
+    private volatile ExpProgram program; //compiled the first time it's evaluated with many bindings
+    private volatile int[] sizes; //how many nodes are under each node, by id, worked out the first parallel evaluation
+    private volatile long[] profile; //how often each operator is used, then the depth, worked out when first asked for
+    
+    private static volatile ExpListener listener; //told about every parse and evaluation, by every tree, if it isn't null
     
     //Constructors
-    ExpTree(String exp) { fill(exp); } //to fill directly upon creation
+    ExpTree(String exp) { fill(exp); } //to fill directly upon creation, without printing anything
     
     ExpTree() { } //to make an empty tree
     
+    //to make a copy of an already filled tree without parsing its input again; the nodes are shared
+    ExpTree(ExpTree other) {
+        root = other.root;
+        arena = other.arena;
+        treeNodes = other.treeNodes;
+        shared = other.shared;
+        validInput = other.validInput;
+        validExp = other.validInput;
+        NotationDet = other.NotationDet;
+        parseError = other.parseError;
+        parseErrorAt = other.parseErrorAt;
+        variables = other.variables;
+        bindings = new int[variables.size()];
+        program = other.program;
+        sizes = other.sizes;
+        profile = other.profile;
+    }
+    
+    //Token codes used by the Lexer. Literals are stored as their own (non-negative) value,
+    //everything else as a negative code, so a whole expression fits in one int array.
+    //A variable is stored as VARIABLE minus its slot.
+    private static final int LEFT_PAREN = -'(';
+    private static final int RIGHT_PAREN = -')';
+    private static final int VARIABLE = -0x10000;
+    private static final int BAD_LITERAL = Integer.MIN_VALUE; //digits that don't fit in an int
+    
+    //Scans the input once, character by character, and stores its tokens in a reusable int buffer.
+    //It also records what the notation detection methods need, so nothing has to be split or matched.
+    private class Lexer {
+        public int[] tokens = new int[16];
+        public int[] starts = new int[16]; //where each token starts in the input
+        public int size;
+        public int length; //of the input
+        public char first; //first non-space character
+        public char last; //last non-space character
+        public boolean spaced; //turned true if a space separates two tokens
+        public boolean joined; //turned true if two tokens touch without a space, as in "+1" or "2("
+        public boolean illegal; //turned true if there's a character no notation allows
+        public int joinedAt; //the token that first touched the one before it
+        public int illegalAt; //where the first character no notation allows is in the input
+        
+        void scan(String input) {
+            size = 0;
+            first = last = ' ';
+            spaced = joined = illegal = false;
+            joinedAt = illegalAt = -1;
+            length = input.length();
+            boolean gap = false; //whether a space came since the last token
+            int n = input.length();
+            int i = 0;
+            while (i < n) {
+                char c = input.charAt(i);
+                if (c == ' ') {
+                    gap = true;
+                    i++;
+                    continue;
+                }
+                if (size > 0) {
+                    if (gap) spaced = true;
+                    else if (!joined) {
+                        joined = true;
+                        joinedAt = size;
+                    }
+                }
+                if (size == 0) first = c;
+                gap = false;
+                int start = i;
+                if (c >= '0' && c <= '9') {
+                    long num = 0;
+                    while (i < n && (c = input.charAt(i)) >= '0' && c <= '9') {
+                        if (num <= Integer.MAX_VALUE) num = num * 10 + (c - '0');
+                        i++;
+                    }
+                    add(num > Integer.MAX_VALUE ? BAD_LITERAL : (int) num, start);
+                    last = input.charAt(i - 1);
+                    continue;
+                }
+                if (isNameStart(c)) {
+                    while (i < n && isNamePart(input.charAt(i))) i++;
+                    add(VARIABLE - slot(input, start, i), start);
+                    last = input.charAt(i - 1);
+                    continue;
+                }
+                if (!isOp(c) && c != '(' && c != ')' && !illegal) {
+                    illegal = true;
+                    illegalAt = i;
+                }
+                add(-c, start);
+                last = c;
+                i++;
+            }
+        }
+        
+        //Finds the slot of the variable named by input[start, end), giving it a new slot if it's new
+        private int slot(String input, int start, int end) {
+            int length = end - start;
+            for (int s = 0; s < variables.size(); s++) {
+                String name = variables.get(s);
+                if (name.length() == length && input.regionMatches(start, name, 0, length)) return s;
+            }
+            variables.add(input.substring(start, end));
+            return variables.size() - 1;
+        }
+        
+        private void add(int token, int start) {
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+            }
+            starts[size] = start;
+            tokens[size++] = token;
+        }
+    }
+    
     //checks whether a character is one of the 6 valid operators
     boolean isOp(String c) {
-        return (c.length() == 1 && "+-/*^%".contains(c));
+        return (c.length() == 1 && isOp(c.charAt(0)));
     }
     
     boolean isOp(char c) {
-        return isOp(Character.toString(c));
+        switch (c) {
+            case '+': case '-': case '*': case '/': case '^': case '%': return true;
+            default: return false;
+        }
+    }
+    
+    //checks whether a token from the Lexer is one of the 6 valid operators
+    private boolean isOpToken(int token) { return token < 0 && token != BAD_LITERAL && isOp((char) -token); }
+    
+    //checks whether a token from the Lexer is a number (even one too big to use)
+    private boolean isLiteral(int token) { return token >= 0 || token == BAD_LITERAL; }
+    
+    //checks whether a token from the Lexer is something with a value, a usable number or a variable
+    private boolean isOperand(int token) { return token >= 0 || (token <= VARIABLE && token != BAD_LITERAL); }
+    
+    //variable names start with a letter or underscore and go on with letters, digits or underscores
+    private boolean isNameStart(char c) { return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'; }
+    
+    private boolean isNamePart(char c) { return isNameStart(c) || (c >= '0' && c <= '9'); }
+    
+    //Makes a leaf for a number or variable token, or reuses an identical one when sharing subtrees
+    private int leaf(int token) {
+        if (token >= 0) return number(token);
+        int slot = VARIABLE - token;
+        treeNodes++;
+        Shape shape = interned == null ? null : new Shape('$', slot, 0);
+        Integer same = shape == null ? null : interned.get(shape);
+        return same != null ? same : intern(shape, arena.add('$', slot, -1, -1));
     }
     
-    //determines whether a string is in prefix notation, provided it's made up of valid characters
-    private boolean isPrefix(String input) { return isOp(input.charAt(0)) | input.matches("\\d+"); }
+    //Makes a leaf for a number, or reuses an identical one when sharing subtrees
+    private int number(int value) {
+        treeNodes++;
+        Shape shape = interned == null ? null : new Shape(' ', value, 0);
+        Integer same = shape == null ? null : interned.get(shape);
+        return same != null ? same : intern(shape, arena.add(' ', value, -1, -1));
+    }
+    
+    //Makes an operation node, or reuses an identical one when sharing subtrees; its children have to be made first
+    private int node(char op, int left, int right) {
+        treeNodes++;
+        Shape shape = interned == null ? null : new Shape(op, left, right);
+        Integer same = shape == null ? null : interned.get(shape);
+        return same != null ? same : intern(shape, arena.add(op, 0, left, right));
+    }
+    
+    //Remembers a new node so identical ones can reuse it, if subtrees are being shared
+    private int intern(Shape shape, int node) {
+        if (shape != null) interned.put(shape, node);
+        return node;
+    }
+    
+    //The parts of a node, looked up in the arena
+    private char op(int node) { return (char) arena.op[node]; }
+    
+    private boolean isLeaf(int node) { return arena.left[node] < 0; }
     
-    //determines whether a string is in postfix notation, provided it's made up of valid characters
-    private boolean isPostfix(String input) { return isOp(input.charAt(input.length() - 1)); }
+    private boolean isVariable(int node) { return arena.op[node] == '$'; }
     
-    //determines whether a string is in infix notation, provided it's made up of valid characters
-    private boolean isInfix(String input) { return (!input.contains(" ")); }
+    //Whether a node is a number leaf with the given value
+    private boolean isNumber(int node, int value) { return arena.op[node] == ' ' && arena.val[node] == value; }
     
-    //Note: the program might realize while it's converting to prefix or filling the tree that the input is
+    //Gives what a node shows: a variable's name, a number or an operator
+    private String label(int node) {
+        if (isVariable(node)) return variables.get(arena.val[node]);
+        if (isLeaf(node)) return Integer.toString(arena.val[node]);
+        return Character.toString(op(node));
+    }
+    
+    //determines whether the scanned input is in prefix notation, provided it's made up of valid characters
+    private boolean isPrefix(Lexer lex) { return isOp(lex.first) | (lex.size == 1 && isLiteral(lex.tokens[0])); }
+    
+    //determines whether the scanned input is in postfix notation, provided it's made up of valid characters
+    private boolean isPostfix(Lexer lex) { return isOp(lex.last); }
+    
+    //determines whether the scanned input is in infix notation, provided it's made up of valid characters
+    private boolean isInfix(Lexer lex) { return !lex.spaced; }
+    
+    //Note: the program might realize while it's building the tree that the input is
     //in fact invalid, even if one of the above methods said it was in their notation.
     
-    //Converts postfix to prefix notation
-    //Algorithm adapted from GeeksForGeeks
-    private String[] postToPre(String postfixString) {
-        String[] postfix = postfixString.split("\\s+");
-        Stack stack = new Stack();
-        for (String symbol : postfix) {
-            if (isOp(symbol)) {
-                if (stack.isEmpty()) {
-                    validExp = false;
-                    return null;
-                }
-                String num1 = (String) stack.pop();
-                if (stack.isEmpty()) {
-                    validExp = false;
-                    return null;
-                }
-                String num2 = (String) stack.pop();
-                stack.push(symbol + " " + num2 + " " + num1);
-            } else stack.push(symbol);
-        }
-        if (stack.isEmpty()) {
-            validExp = false;
-            return null;
+    //Used for parsing infix. Determines precedence of operations, or returns 0 if op is unknown.
+    private int prec(int token) {
+        switch (token) {
+            case -'+': return 1;
+            case -'-': return 1;
+            case -'*': return 2;
+            case -'/': return 2;
+            case -'%': return 2;
+            case -'^': return 3;
+            default: return 0;
         }
-        String[] prefix = ((String)stack.pop()).split("\\s+");
-        if (stack.isEmpty()) return prefix;
-        else {
-            validExp = false;
-            return null;
+    }
+    
+    //Exponentiation groups from the right (2^3^2 is 2^9), everything else from the left
+    private boolean isRightAssoc(int token) { return token == -'^'; }
+    
+    //Records why the input is invalid and where, then gives the -1 the parsers return for it.
+    //token is the index of the token at fault, or lex.size if something is missing at the end.
+    private int fail(Lexer lex, ExpResult.Kind kind, int token) {
+        parseError = kind;
+        parseErrorAt = token < lex.size ? lex.starts[token] : lex.length;
+        return -1;
+    }
+    
+    //What's wrong with a token that can't go where it is and isn't an operand or operator
+    private ExpResult.Kind unexpected(int token) {
+        if (token == BAD_LITERAL) return ExpResult.Kind.NUMBER_TOO_BIG;
+        if (token == LEFT_PAREN || token == RIGHT_PAREN) return ExpResult.Kind.UNEXPECTED_PARENTHESIS;
+        return ExpResult.Kind.INVALID;
+    }
+    
+    //Builds the tree from prefix tokens by reading them backwards, which works just like postfix:
+    //an operator's operands are the two subtrees most recently finished. Every token has to be used up.
+    private int prefixTree(Lexer lex) {
+        if (lex.joined) return fail(lex, ExpResult.Kind.MISSING_SPACE, lex.joinedAt);
+        int[] nodes = new int[lex.size];
+        int[] firsts = new int[lex.size]; //the token each finished subtree starts at
+        int top = 0;
+        for (int k = lex.size - 1; k >= 0; k--) {
+            int symbol = lex.tokens[k];
+            if (isOperand(symbol)) {
+                firsts[top] = k;
+                nodes[top++] = leaf(symbol);
+            } else if (isOpToken(symbol)) {
+                if (top < 2) return fail(lex, ExpResult.Kind.MISSING_OPERAND, k);
+                int left = nodes[--top];
+                nodes[top - 1] = node((char) -symbol, left, nodes[top - 1]);
+                firsts[top - 1] = k;
+            } else return fail(lex, unexpected(symbol), k);
         }
-    } 
+        //the subtree under the first one has nothing joining it to the first
+        if (top > 1) return fail(lex, ExpResult.Kind.MISSING_OPERATOR, firsts[top - 2]);
+        return nodes[0];
+    }
     
-    //Used for turning infix to postfix. Determines precedence of operations, or returns 0 if op is unknown.
-    private int prec(String op) {
-        switch (op) {
-            case "+": return 1;
-            case "-": return 1;
-            case "*": return 2;
-            case "/": return 2;
-            case "%": return 2;
-            case "^": return 3;
-            default: return 0;
+    //Builds the tree straight from postfix tokens, keeping a stack of finished subtrees
+    private int postfixTree(Lexer lex) {
+        if (lex.joined) return fail(lex, ExpResult.Kind.MISSING_SPACE, lex.joinedAt);
+        int[] nodes = new int[lex.size];
+        int[] firsts = new int[lex.size]; //the token each finished subtree starts at
+        int top = 0;
+        for (int k = 0; k < lex.size; k++) {
+            int symbol = lex.tokens[k];
+            if (isOperand(symbol)) {
+                firsts[top] = k;
+                nodes[top++] = leaf(symbol);
+            } else if (isOpToken(symbol)) {
+                if (top < 2) return fail(lex, ExpResult.Kind.MISSING_OPERAND, k);
+                int right = nodes[--top];
+                nodes[top - 1] = node((char) -symbol, nodes[top - 1], right);
+            } else return fail(lex, unexpected(symbol), k);
         }
+        //the second subtree has nothing joining it to the first
+        if (top > 1) return fail(lex, ExpResult.Kind.MISSING_OPERATOR, firsts[1]);
+        return nodes[0];
     }
     
-    //Algorithm adapted from GeeksForGeeks, used for eventually turning infix to prefix
-    //It switches the order of same-precedence operations (like + and -) so they'll be in the correct
-    //order when it's reversed to turn into infix.
-    private String[] inToPost(String[] infix) {
-        if (infix == null) return null;
-        Stack stack = new Stack();
-        ArrayList<String> postfix = new ArrayList<String>();
-        for (String symbol : infix) {
-            if (symbol.matches("\\d+")) postfix.add(symbol);
-            else if (symbol.equals("(")) stack.push(symbol);
-            else if (symbol.equals(")")) {
-                // Output all operators since the last left paren:
-                while (!stack.isEmpty()) {
-                    if (stack.peek().equals("(")) break;
-                    postfix.add((String) stack.pop());
-                }
-                if (!stack.isEmpty()) {
-                    if (stack.pop().equals("(")) {
-                        continue;
-                    }
-                }
-                // No left paren in the stack:
-                validExp = false;
-                return null;
-            } else if (isOp(symbol)) {
+    //Pops an operator and its two operands and pushes the subtree they make, used by infixTree
+    private int reduce(int[] ops, int opTop, int[] nodes, int nodeTop) {
+        int right = nodes[nodeTop - 1];
+        nodes[nodeTop - 2] = node((char) -ops[opTop - 1], nodes[nodeTop - 2], right);
+        return nodeTop - 1;
+    }
+    
+    //Builds the tree straight from infix tokens in one pass with the shunting-yard algorithm,
+    //using one stack for operators and parentheses and another for finished subtrees
+    private int infixTree(Lexer lex) {
+        int[] ops = new int[lex.size];
+        int[] opTokens = new int[lex.size]; //the token each of ops came from, to tell where an unclosed paren is
+        int opTop = 0;
+        int[] nodes = new int[lex.size];
+        int nodeTop = 0;
+        boolean wantOperand = true; //false right after a number or a right paren
+        for (int k = 0; k < lex.size; k++) {
+            int symbol = lex.tokens[k];
+            if (wantOperand) {
+                if (isOperand(symbol)) {
+                    nodes[nodeTop++] = leaf(symbol);
+                    wantOperand = false;
+                } else if (symbol == LEFT_PAREN) {
+                    opTokens[opTop] = k;
+                    ops[opTop++] = symbol;
+                } else if (symbol == RIGHT_PAREN || isOpToken(symbol)) return fail(lex, ExpResult.Kind.MISSING_OPERAND, k);
+                else return fail(lex, unexpected(symbol), k);
+            } else if (symbol == RIGHT_PAREN) {
+                // Build everything since the last left paren:
+                while (opTop > 0 && ops[opTop - 1] != LEFT_PAREN) nodeTop = reduce(ops, opTop--, nodes, nodeTop);
+                if (opTop == 0) return fail(lex, ExpResult.Kind.UNBALANCED_PARENTHESES, k); // No left paren in the stack
+                opTop--;
+            } else if (isOpToken(symbol)) {
                 int p = prec(symbol);
-                // Pop and enqueue all ops in the stack
-                // of equal or greater precedence:
-                while (!stack.isEmpty()) {
-                    if (p >= prec((String) stack.peek()) | stack.peek().equals("(")) break;
-                    postfix.add((String) stack.pop());
+                // Build everything on the stack that has to happen first:
+                while (opTop > 0 && ops[opTop - 1] != LEFT_PAREN) {
+                    int q = prec(ops[opTop - 1]);
+                    if (q < p || (q == p && isRightAssoc(symbol))) break;
+                    nodeTop = reduce(ops, opTop--, nodes, nodeTop);
                 }
-                stack.push(symbol); // Add the current op to the stack
-            } else {
-                validExp = false;
-                return null;
-            }
+                opTokens[opTop] = k;
+                ops[opTop++] = symbol;
+                wantOperand = true;
+            } else if (isOperand(symbol) || symbol == LEFT_PAREN) return fail(lex, ExpResult.Kind.MISSING_OPERATOR, k);
+            else return fail(lex, unexpected(symbol), k);
+        }
+        if (wantOperand) return fail(lex, ExpResult.Kind.MISSING_OPERAND, lex.size);
+        while (opTop > 0) {
+            if (ops[opTop - 1] == LEFT_PAREN) return fail(lex, ExpResult.Kind.UNBALANCED_PARENTHESES, opTokens[opTop - 1]);
+            nodeTop = reduce(ops, opTop--, nodes, nodeTop);
         }
-        // Copy all the remaining operations to output:
-        while (!stack.isEmpty()) postfix.add((String) stack.pop());
-        return postfix.toArray(new String[0]);
+        return nodes[0];
     }
     
-    //Used for turning infix to prefix; two reversals are required
-    private String[] reverse(String[] forward) {
-        if (forward == null) return null;
-        int size = forward.length;
-        String[] backward = new String[size];
-        for (int i = size - 1; i >= 0; i--) {
-            String symbol = forward[i];
-            if (symbol.equals("(")) symbol = ")";
-            else if (symbol.equals(")")) symbol = "(";
-            backward[size - i - 1] = symbol;
+    //The operators, in the order operations(char) and listeners count them
+    static final String OPERATORS = "+-*/%^";
+    
+    //What NotationDet can be, numbered for the binary format
+    private static final String[] NOTATIONS = {null, "No input detected.", "Input detected as prefix notation.",
+        "Input detected as infix notation.", "Input detected as postfix notation."};
+    
+    //What a listener is told the notation was, for each of NOTATIONS
+    private static final String[] NOTATION_NAMES = {"unknown", "empty", "prefix", "infix", "postfix"};
+    
+    //Detects notation of input and builds the tree with the matching parser
+    private int build(Lexer lex) {
+        if (lex.size == 0) {
+            NotationDet = NOTATIONS[1];
+            return -1;
         }
-        return backward;
+        int node = -1;
+        NotationDet = null; //stays null if it matches no notation, instead of keeping the last input's
+        if (isPrefix(lex)) {
+            NotationDet = NOTATIONS[2];
+            node = prefixTree(lex);
+        } else if (isInfix(lex)) {
+            NotationDet = NOTATIONS[3];
+            node = infixTree(lex);
+        } else if (isPostfix(lex)) {
+            NotationDet = NOTATIONS[4];
+            node = postfixTree(lex);
+        } else fail(lex, ExpResult.Kind.NO_NOTATION, 0);
+        if (node < 0) validExp = false;
+        return node;
     }
     
-    //Algorithm adapted from GeeksForGeeks
-    private String[] inToPre(String input) {
-        StringBuilder newInput = new StringBuilder();
-        //puts spaces in so it's able to be split up into symbols
-        for (int i = 0; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (Character.isDigit(c)) newInput.append(c);
-            else if (isOp(Character.toString(c))) newInput.append(" " + c + " ");
-            else if (c == '(') newInput.append("( ");
-            else if (c == ')') newInput.append(" )");
-        }
-        String[] infix = newInput.toString().split("\\s+");
-        //the actual algorithm: reverse, change to postfix, and reverse again
-        return reverse(inToPost(reverse(infix)));
+    //Checks the input to make sure it's valid, then detects the notation and fills the tree. Nothing is printed:
+    //isValid(), notation(), parseError() and parseErrorOffset() tell how it went.
+    public void fill (String input) { fill(input, false); }
+    
+    //Fills the tree, building every repeated subtree only once, so an input like (2+2)*(3*7)+(2+2)*(3*7)
+    //becomes a DAG where both copies of (2+2)*(3*7) are the same node. Evaluating it works out each shared
+    //node only once, so an error inside a shared subtree is only reported once; everything else works just
+    //like on a normal tree. sharing() tells how much was saved.
+    public void fillShared(String input) { fill(input, false, true); }
+    
+    //Fills the tree, print is whether you want it to say which notation it found or that the input is invalid,
+    //which only doItAll() asks for
+    void fill(String input, boolean print) { fill(input, print, false); }
+    
+    //Fills the tree, share is whether to build identical subtrees only once
+    void fill(String input, boolean print, boolean share) {
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        validExp = true;
+        parseError = ExpResult.Kind.NONE;
+        parseErrorAt = -1;
+        last = null;
+        program = null;
+        sizes = null;
+        profile = null;
+        treeNodes = 0;
+        shared = share;
+        variables = new ArrayList<String>(); //a new list, since copies of the old tree might share the old one
+        lexer.scan(input);
+        arena = new NodeArena(lexer.size); //never more nodes than tokens; a new one, since copies share the old one
+        if (share) interned = new HashMap<Shape, Integer>();
+        if (lexer.illegal) {
+            validExp = false;
+            root = -1;
+            NotationDet = null;
+            parseError = ExpResult.Kind.ILLEGAL_CHARACTER;
+            parseErrorAt = lexer.illegalAt;
+        } else root = build(lexer);
+        interned = null;
+        arena.trim();
+        validInput = validExp;
+        bindings = new int[variables.size()];
+        if (l != null) l.parsed(this, notationName(), validExp, System.nanoTime() - start);
+        if (!print) return;
+        if (validExp) System.out.println(NotationDet); //Says which notation it's in
+        else System.out.println("Input does not match prefix, infix, or postfix notation.");
     }
     
-    //Detects notation of input and converts it to prefix
-    private String[] toPrefix(String input) {
-        if (input.length() == 0) {
-            NotationDet = "No input detected.";
-            return null;
-        }
-        if (isPrefix(input)) {
-            NotationDet = "Input detected as prefix notation.";
-            return input.split("\\s+");
-        }
-        if (isInfix(input)) {
-            NotationDet = "Input detected as infix notation.";
-            return inToPre(input);
-        }
-        if (isPostfix(input)) {
-            NotationDet = "Input detected as postfix notation.";
-            return postToPre(input);
+    //Whether the input was a valid expression (and hasn't divided by zero since)
+    public boolean isValid() { return validExp; }
+    
+    //Says which notation the input was detected as, or null if it had characters no notation allows
+    public String notation() { return NotationDet; }
+    
+    //Says why the input isn't a valid expression, or NONE if it is (a division by zero in eval() doesn't count)
+    public ExpResult.Kind parseError() { return parseError; }
+    
+    //Where in the input it went wrong, counting characters from 0, or -1 if it didn't
+    public int parseErrorOffset() { return parseErrorAt; }
+    
+    //Moves where the input is said to go wrong, for a tree parsed from a normalized copy of its input
+    void moveParseError(int offset) {
+        if (parseErrorAt >= 0) parseErrorAt = offset;
+    }
+    
+    //Gives the number of nodes in the tree, counting a shared subtree's nodes only once
+    public int size() { return root < 0 ? 0 : arena.size; }
+    
+    //Tells how many nodes the tree would have without sharing and how many it has
+    public String sharing() {
+        if (root < 0) return "Tree is empty; nothing to share.";
+        int saved = treeNodes - arena.size;
+        return "Nodes: " + treeNodes + " as a tree, " + arena.size + " after sharing common subexpressions (" +
+            saved + " saved, " + (100L * saved / treeNodes) + "%).";
+    }
+    
+    //Writes a node's label without making a String for it, so writing a tree only allocates what out keeps
+    private void label(Appendable out, int node) throws IOException {
+        if (isVariable(node)) out.append(variables.get(arena.val[node]));
+        else if (!isLeaf(node)) out.append(op(node));
+        else if (out instanceof StringBuilder) ((StringBuilder) out).append(arena.val[node]);
+        else {
+            //one digit at a time, biggest first
+            long value = arena.val[node];
+            if (value < 0) {
+                out.append('-');
+                value = -value;
+            }
+            long place = 1;
+            while (place * 10 <= value) place *= 10;
+            for (; place > 0; place /= 10) out.append((char) ('0' + value / place % 10));
         }
-        validExp = false;
-        return null;
     }
     
-    //Recursively fills the tree with values and operators, using a prefix string and the Position wrapper
-    private ExpTreeNode fill(String[] prefix, Position i){
-        if (i.val >= prefix.length) {
-            validExp = false;
-            return null;
-        }
-        String symbol = prefix[i.val];
-        i.val++;
-        if (symbol.matches("\\d+") && !symbol.contains(".")) {
-            try { return new ExpTreeNode(Integer.valueOf(symbol)); }
-            catch (NumberFormatException e) { }
-        } else if (isOp(symbol)) return new ExpTreeNode(symbol.charAt(0), fill(prefix, i), fill(prefix, i));
-        validExp = false;
+    //Gives the message to write instead of a notation, or null if the tree can be written
+    private String unwritable(String notation) {
+        if (!validExp) return "Invalid expression; can't convert to " + notation + ".";
+        if (root < 0) return "Tree is empty; nothing to see here.";
         return null;
     }
     
-    //Checks the input to make sure it's valid, then converts to prefix and fills the tree
-    public void fill (String input) {
-        validExp = true;
-        evaluated = false;
-        overflow = false;
-        for (char c : input.toCharArray()) {
-            if ("0123456789+-*/^%() ".indexOf(c) < 0) {
-                validExp = false;
-                System.out.println("Input does not match prefix, infix, or postfix notation.");
-                return;
-            }
+    //Writes the prefix notation of the expression to out as it traverses the tree, with an explicit stack.
+    //Nothing is built up in between, so out can be a Writer (buffered, ideally) streaming to a file or socket.
+    public void prefix(Appendable out) throws IOException {
+        String message = unwritable("prefix");
+        if (message != null) {
+            out.append(message);
+            return;
         }
-        String[] prefix = toPrefix(input.trim());
-        if (prefix == null) root = null;
-        else {
-            Position i = new Position();
-            root = fill(prefix, i);
-            if (i.val != prefix.length) {
-                validExp = false;
-                root = null;
-            }          
+        Walk walk = new Walk(root);
+        boolean first = true;
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            walk.pop();
+            if (!first) out.append(' ');
+            first = false;
+            label(out, n);
+            if (!isLeaf(n)) {
+                walk.push(arena.right[n]);
+                walk.push(arena.left[n]);
+            }
         }
-        if (validExp) System.out.println(NotationDet); //Says which notation it's in
-        else System.out.println("Input does not match prefix, infix, or postfix notation.");
     }
     
-    //Recursively gives the prefix notation of the expression by traversing the tree
-    private String prefix(ExpTreeNode node) {
-        if (node == null) return "";
-        return node.toString() + " " + prefix(node.left) + prefix(node.right);
+    //Gives the prefix notation of the expression by traversing the tree
+    public String prefix() { return write(this::prefix); }
+    
+    //Writes the postfix notation of the expression to out as it traverses the tree, with an explicit stack
+    public void postfix(Appendable out) throws IOException {
+        String message = unwritable("postfix");
+        if (message != null) {
+            out.append(message);
+            return;
+        }
+        Walk walk = new Walk(root);
+        boolean first = true;
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            if (!isLeaf(n) && walk.advance() < 2) {
+                walk.push(walk.stage() == 1 ? arena.left[n] : arena.right[n]);
+                continue;
+            }
+            if (!first) out.append(' ');
+            first = false;
+            label(out, n);
+            walk.pop();
+        }
     }
     
-    //Gives the prefix notation of the expression by traversing the tree
-    public String prefix() {
-        if (!validExp) return "Invalid expression; can't convert to prefix.";
-        if (root == null) return "Tree is empty; nothing to see here.";
-        return prefix(root).trim();
+    //Gives the postfix notation of the expression by traversing the tree
+    public String postfix() { return write(this::postfix); }
+    
+    //Writes the infix notation of the expression to out as it traverses the tree, with an explicit stack.
+    //If minimal, an operation only gets parentheses when the parser would read it differently without them:
+    //when it binds less tightly than the operation it's under, or just as tightly but on the side its
+    //parent doesn't group from (1-(2-3) and (2^3)^2 keep theirs). Otherwise every operation gets them.
+    public void infix(Appendable out, boolean minimal) throws IOException {
+        String message = unwritable("infix");
+        if (message != null) {
+            out.append(message);
+            return;
+        }
+        Walk walk = new Walk(root);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            if (isLeaf(n)) {
+                label(out, n);
+                walk.pop();
+                continue;
+            }
+            switch (walk.advance()) {
+                case 0:
+                    if (!minimal || needsParens(walk)) out.append('(');
+                    walk.push(arena.left[n]);
+                    break;
+                case 1:
+                    label(out, n);
+                    walk.push(arena.right[n]);
+                    break;
+                default:
+                    if (!minimal || needsParens(walk)) out.append(')');
+                    walk.pop();
+            }
+        }
     }
     
-    //Recursively gives the postfix notation of the expression by traversing the tree
-    private String postfix(ExpTreeNode node) {
-        if (node == null) return "";
-        return postfix(node.left) + postfix(node.right) + " " + node.toString();
+    //Whether the operation on top of a walk has to be in parentheses for infix to mean the same tree
+    private boolean needsParens(Walk walk) {
+        int parent = walk.parent();
+        if (parent < 0) return false;
+        int p = prec(-op(parent));
+        int c = prec(-op(walk.node()));
+        if (c != p) return c < p;
+        boolean isLeft = walk.parentStage() == 1;
+        return isRightAssoc(-op(parent)) ? isLeft : !isLeft;
     }
     
-    //Gives the postfix notation of the expression by traversing the tree
-    public String postfix() { 
-        if (!validExp) return "Invalid expression; can't convert to postfix.";
-        if (root == null) return "Tree is empty; nothing to see here.";
-        return postfix(root).trim();
+    //Gives the infix notation of the expression by traversing the tree, with every operation in parentheses
+    public String infix() { return infix(false); }
+    
+    //Gives the infix notation of the expression, with only the parentheses it needs if minimal
+    public String infix(boolean minimal) { return write(out -> infix(out, minimal)); }
+    
+    //Used by the String versions of the notations, which write into one StringBuilder
+    private interface Writing {
+        void to(Appendable out) throws IOException;
     }
     
-    //Recursively gives the infix notation of the expression by traversing the tree
-    private String infix(ExpTreeNode node) {
-        if (node == null) return "";
-        if (node.op == ' ') return node.toString();
-        return "(" + infix(node.left) + node.toString() + infix(node.right) + ")";
+    private static String write(Writing writing) {
+        StringBuilder out = new StringBuilder();
+        try {
+            writing.to(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //a StringBuilder never throws it
+        }
+        return out.toString();
     }
     
-    //Gives the prefix notation of the expression by traversing the tree
-    public String infix() { 
-        if (!validExp) return "Invalid expression; can't convert to infix.";
-        if (root == null) return "Tree is empty; nothing to see here.";
-        return infix(root).trim();
-    }
-    
-    //Recursively evaluates the expression by traversing the tree and catches integer overflows
-    private int eval(ExpTreeNode node, boolean printError) {
-        if (node == null) return 0;
-        int a = eval(node.left, printError);
-        int b = eval(node.right, printError);
-        if ((a == Integer.MAX_VALUE | b == Integer.MAX_VALUE) && overflow) {
-            return node.val = Integer.MAX_VALUE;
-        }
-        switch (node.op) {
-            case ' ': return node.val;
-            case '+': 
-                try { return node.val = Math.addExact(a,b); }
-                catch (ArithmeticException e) {
-                    if (printError) System.out.println("Integer overflow; can't evaluate.");
-                    overflow = true;
-                    return node.val = Integer.MAX_VALUE;
-                }
+    //Evaluates a single operation from its children's values a and b, and catches integer overflows.
+    //Overflows are caught by looking at the bits of the answer, the same way ExpProgram does, instead of
+    //catching the ArithmeticException of Math.addExact and the like, which costs far more than the operation.
+    //Errors go in the result; printError is whether to print overflows and printDivision whether to
+    //print divisions by zero, which only doItAll() asks for. ExpStream uses it too, so streamed expressions
+    //give exactly what eval() gives.
+    static int apply(char op, int a, int b, ExpResult result, boolean printError, boolean printDivision) {
+        if ((a == Integer.MAX_VALUE | b == Integer.MAX_VALUE) && result.overflow) {
+            return Integer.MAX_VALUE;
+        }
+        int value;
+        switch (op) {
+            case '+':
+                value = a + b;
+                if (((a ^ value) & (b ^ value)) >= 0) return value; //an overflow flips the sign of both
+                break;
             case '*':
-                try { return node.val = Math.multiplyExact(a,b); }
-                catch (ArithmeticException e) {
-                    if (printError) System.out.println("Integer overflow; can't evaluate.");
-                    overflow = true;
-                    return node.val = Integer.MAX_VALUE;
-                }
+                long product = (long) a * b;
+                if ((int) product == product) return (int) product;
+                break;
             case '-':
-                try { return node.val = Math.addExact(a,-b); }
-                catch (ArithmeticException e) {
-                    if (printError) System.out.println("Integer overflow; can't evaluate.");
-                    overflow = true;
-                    return node.val = Integer.MAX_VALUE;
-                }
+                int negB = -b; //same as Math.addExact(a, -b), which this used to be
+                value = a + negB;
+                if (((a ^ value) & (negB ^ value)) >= 0) return value;
+                break;
             case '/':
                 if (b == 0) {
-                    System.out.println("Error: division by zero");
-                    validExp = false;
+                    if (printDivision) System.out.println("Error: division by zero");
+                    result.divByZero = true;
                     return 0;
                 }
-                return node.val = a / b;
+                return a / b;
             case '%':
                 if (b == 0) {
-                    System.out.println("Error: division by zero");
-                    validExp = false;
+                    if (printDivision) System.out.println("Error: division by zero");
+                    result.divByZero = true;
                     return 0;
-                } else return node.val = a % b;
+                } else return a % b;
             case '^':
-                node.val = (int) Math.pow(a, b);
-                if (node.val == Integer.MAX_VALUE) {
-                    if (printError) System.out.println("Integer overflow; can't evaluate.");
-                    overflow = true;
-                }
-                return node.val;
+                int power = (int) Math.pow(a, b);
+                if (power != Integer.MAX_VALUE) return power;
+                break;
             default:
-                System.out.println("Unrecognized operator: " + node.op);
-                return 0;
+                return 0; //the parser never makes any other operator
+        }
+        if (printError) System.out.println("Integer overflow; can't evaluate.");
+        result.overflow = true;
+        return Integer.MAX_VALUE;
+    }
+    
+    //Evaluates the tree with walkAll(), telling the listener about it if there is one
+    private ExpResult evaluate(int[] slots, boolean nodeValues, boolean printError, boolean printDivision) {
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        return evaluated(l, start, walkAll(slots, nodeValues, printError, printDivision));
+    }
+    
+    //Evaluates the tree children-first with an explicit stack, keeping finished values on a second stack.
+    //Nothing but the new result is changed, so this is safe to call from many threads at once.
+    //In a shared tree each node's value is remembered the first time it's worked out and reused after that.
+    //A value only depends on whether there was an overflow before it, so it's worked out again (once) if
+    //an overflow happens in between, which keeps the result exactly what the unshared tree would give.
+    private ExpResult walkAll(int[] slots, boolean nodeValues, boolean printError, boolean printDivision) {
+        ExpResult result = new ExpResult(nodeValues ? arena.size : -1);
+        if (!validInput) return invalid(result);
+        if (root < 0) return result;
+        int[] known = null; //values already worked out, by node id
+        byte[] knownWith = null; //1 if known[id] was worked out before any overflow, 2 if after, 0 if it wasn't
+        if (shared) {
+            known = nodeValues ? result.nodeValues : new int[arena.size];
+            knownWith = new byte[arena.size];
+        }
+        result.value = walk(root, slots, result, known, knownWith, printError, printDivision, null);
+        return result;
+    }
+    
+    //Evaluates the subtree under start children-first with an explicit stack, keeping finished values on a second
+    //stack, and gives its value. Errors go in result, and so do node values if it keeps them. known and knownWith
+    //remember the values of shared nodes, if they aren't null. If forking isn't null, nodes with two big enough
+    //subtrees have them evaluated at the same time.
+    private int walk(int start, int[] slots, ExpResult result, int[] known, byte[] knownWith,
+                     boolean printError, boolean printDivision, Forking forking) {
+        byte[] ops = arena.op;
+        int[] vals = arena.val;
+        int[] lefts = arena.left;
+        int[] rights = arena.right;
+        int[] values = new int[32];
+        int size = 0;
+        Walk walk = new Walk(start);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            int value;
+            if (lefts[n] < 0) value = ops[n] == '$' ? slots[vals[n]] : vals[n];
+            else {
+                int stage = walk.advance();
+                if (stage == 0 && known != null && knownWith[n] == (result.overflow ? 2 : 1)) {
+                    value = known[n];
+                } else if (stage == 0 && forking != null && forking.splits(n) && !result.overflow) {
+                    value = fork(n, slots, result, forking);
+                } else if (stage == 0) {
+                    if (known != null) knownWith[n] = (byte) (result.overflow ? -2 : -1); //in progress
+                    walk.push(lefts[n]);
+                    continue;
+                } else if (stage == 1) {
+                    walk.push(rights[n]);
+                    continue;
+                } else {
+                    int b = values[--size];
+                    int a = values[--size];
+                    value = apply((char) ops[n], a, b, result, printError, printDivision);
+                    if (known != null) {
+                        known[n] = value;
+                        knownWith[n] = (byte) -knownWith[n];
+                    }
+                }
+            }
+            walk.pop();
+            if (result.nodeValues != null) result.nodeValues[n] = value;
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+        return values[0];
+    }
+    
+    //What a parallel evaluation goes by: the size of every subtree, and how big both of a node's subtrees
+    //have to be for them to be evaluated at the same time
+    private class Forking {
+        final int[] sizes;
+        final int threshold;
+        
+        //Constructor
+        Forking(int[] sizes, int threshold) {
+            this.sizes = sizes;
+            this.threshold = threshold;
+        }
+        
+        //Whether an operation's two subtrees are worth evaluating at the same time
+        boolean splits(int node) { return sizes[arena.left[node]] >= threshold && sizes[arena.right[node]] >= threshold; }
+    }
+    
+    //Evaluates one subtree as a fork-join task, starting with no overflow
+    private class Fork extends RecursiveTask<ExpResult> {
+        private static final long serialVersionUID = 1L; //never actually serialized, but RecursiveTask is Serializable
+        private final int node;
+        private final int[] slots;
+        private final Forking forking;
+        
+        //Constructor
+        Fork(int node, int[] slots, Forking forking) {
+            this.node = node;
+            this.slots = slots;
+            this.forking = forking;
+        }
+        
+        protected ExpResult compute() {
+            ExpResult result = new ExpResult(-1);
+            result.value = walk(node, slots, result, null, null, false, false, forking);
+            return result;
+        }
+    }
+    
+    //Evaluates an operation by evaluating its two subtrees at the same time, when there's been no overflow yet.
+    //Each side starts out with no overflow, which is exactly right for the left side. It's also right for the
+    //right side unless the left side overflowed; then the operation gives the big value whatever the right side
+    //is, and only a division by zero could come out differently, so in that case the right side is done over.
+    private int fork(int node, int[] slots, ExpResult result, Forking forking) {
+        Fork right = new Fork(arena.right[node], slots, forking);
+        right.fork();
+        ExpResult a = new Fork(arena.left[node], slots, forking).compute();
+        ExpResult b = right.join();
+        if (a.overflow && b.divByZero) {
+            b = new ExpResult(-1);
+            b.overflow = true;
+            b.value = walk(arena.right[node], slots, b, null, null, false, false, null);
+        }
+        result.overflow |= a.overflow | b.overflow;
+        result.divByZero |= a.divByZero | b.divByZero;
+        return apply(op(node), a.value, b.value, result, false, false);
+    }
+    
+    //Gives the number of nodes under every node, itself included, working them out the first time.
+    //Children always come before their parents, so one pass in order of id does it.
+    //Nodes under a shared node count every time it's used.
+    private int[] sizes() {
+        int[] s = sizes;
+        if (s != null) return s;
+        s = new int[arena.size];
+        for (int n = 0; n < s.length; n++) {
+            if (isLeaf(n)) s[n] = 1;
+            else s[n] = (int) Math.min(1L + s[arena.left[n]] + s[arena.right[n]], Integer.MAX_VALUE);
+        }
+        sizes = s;
+        return s;
+    }
+    
+    //Evaluates the expression like evaluate(slots), but on a fork-join pool: whenever both of an operation's
+    //subtrees have at least threshold nodes, they're evaluated at the same time. The result is exactly what
+    //evaluate(slots) gives. Shared subtrees are worked out every time they're used, and no node values are kept.
+    public ExpResult evaluateParallel(int[] slots, ForkJoinPool pool, int threshold) {
+        if (!validInput || root < 0) return evaluate(slots);
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        return evaluated(l, start, pool.invoke(new Fork(root, slots, new Forking(sizes(), Math.max(threshold, 2)))));
+    }
+    
+    //Same as evaluateParallel(slots, pool, threshold) on the common pool, splitting subtrees of 10000 nodes or more
+    public ExpResult evaluateParallel(int[] slots) { return evaluateParallel(slots, ForkJoinPool.commonPool(), 10000); }
+    
+    //Evaluates the expression with slots[i] as the value of the variable in slot i, walking the tree.
+    //It doesn't print or change anything, so one tree can be evaluated by many threads at once.
+    public ExpResult evaluate(int[] slots) { return evaluate(slots, false, false, false); }
+    
+    //Same as evaluate(slots), also keeping every node's value if nodeValues is true
+    public ExpResult evaluate(int[] slots, boolean nodeValues) { return evaluate(slots, nodeValues, false, false); }
+    
+    //Evaluates the expression in a numeric domain, with slots[i] as the value of the variable in slot i.
+    //The exact value is result.number(), unless something doesn't fit in the domain: then it's an overflow,
+    //and nothing more gets worked out. Nothing is printed, and no node values are kept.
+    public <T extends Number> ExpResult evaluate(ExpDomain<T> domain, int[] slots) {
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        return evaluated(l, start, walkIn(domain, slots));
+    }
+    
+    //Marks a result as coming from an invalid input, saying why and where
+    private ExpResult invalid(ExpResult result) {
+        result.valid = false;
+        result.invalidKind = parseError;
+        result.offset = parseErrorAt;
+        return result;
+    }
+    
+    //Does the work of evaluate(domain, slots)
+    private <T extends Number> ExpResult walkIn(ExpDomain<T> domain, int[] slots) {
+        ExpResult result = new ExpResult(-1);
+        if (!validInput) return invalid(result);
+        if (root < 0) return result;
+        Number[] known = shared ? new Number[arena.size] : null; //values of shared nodes, which never depend on what came before
+        Number[] values = new Number[32];
+        int size = 0;
+        Walk walk = new Walk(root);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            T value;
+            if (isLeaf(n)) value = domain.number(isVariable(n) ? slots[arena.val[n]] : arena.val[n]);
+            else {
+                int stage = walk.advance();
+                if (stage == 0 && known != null && known[n] != null) {
+                    @SuppressWarnings("unchecked") T memo = (T) known[n];
+                    value = memo;
+                } else if (stage < 2) {
+                    walk.push(stage == 0 ? arena.left[n] : arena.right[n]);
+                    continue;
+                } else {
+                    @SuppressWarnings("unchecked") T b = (T) values[--size];
+                    @SuppressWarnings("unchecked") T a = (T) values[--size];
+                    value = domain.apply(op(n), a, b, result);
+                    if (value == null) {
+                        result.overflow = true;
+                        result.value = Integer.MAX_VALUE;
+                        return result;
+                    }
+                    if (known != null) known[n] = value;
+                }
+            }
+            walk.pop();
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
         }
+        result.number = values[0];
+        result.value = ExpDomain.toInt(result.number);
+        return result;
+    }
+    
+    //Evaluates the expression exactly, whatever size the value is (up to ExpDomain.MAX_BITS), with slots[i] as
+    //the value of the variable in slot i. It's worked out with plain longs first, which is nearly as fast as
+    //eval(), and only if something doesn't fit in a long is it worked out again with BigIntegers.
+    //result.number() is a Long, or a BigInteger if it had to be.
+    public ExpResult evaluateExact(int[] slots) {
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        return evaluated(l, start, walkExact(slots));
     }
     
-    //Evaluates the tree, printError is whether you want it to tell you if there's an error
-    //(set to false, for example, if used inside of the instruct() method)
+    //Does the work of evaluateExact()
+    private ExpResult walkExact(int[] slots) {
+        if (!validInput || root < 0) return walkIn(ExpDomain.LONG, slots);
+        ExpResult result = new ExpResult(-1);
+        long[] known = null; //values of shared nodes, which never depend on what came before
+        boolean[] isKnown = null;
+        if (shared) {
+            known = new long[arena.size];
+            isKnown = new boolean[arena.size];
+        }
+        byte[] ops = arena.op;
+        int[] vals = arena.val;
+        int[] lefts = arena.left;
+        int[] rights = arena.right;
+        long[] values = new long[32];
+        int size = 0;
+        Walk walk = new Walk(root);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            long value;
+            if (lefts[n] < 0) value = ops[n] == '$' ? slots[vals[n]] : vals[n];
+            else {
+                int stage = walk.advance();
+                if (stage == 0 && known != null && isKnown[n]) value = known[n];
+                else if (stage < 2) {
+                    walk.push(stage == 0 ? lefts[n] : rights[n]);
+                    continue;
+                } else {
+                    long b = values[--size];
+                    long a = values[--size];
+                    value = ExpDomain.exact((char) ops[n], a, b, result);
+                    if (result.overflow) return walkIn(ExpDomain.BIG, slots); //too big for a long
+                    if (known != null) {
+                        known[n] = value;
+                        isKnown[n] = true;
+                    }
+                }
+            }
+            walk.pop();
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+        result.number = values[0];
+        result.value = ExpDomain.toInt(result.number);
+        return result;
+    }
+    
+    //Evaluates the tree, printError is whether you want it to tell you if there's an error,
+    //which only doItAll() asks for
     private int eval(boolean printError) { 
-        overflow = false;
         if (validExp) {
-            evaluated = true;
-            int result = eval(root, printError);
-            if (result == Integer.MAX_VALUE) return 0;
-            return result;
+            last = evaluate(bindings, true, printError, printError);
+            if (last.dividedByZero()) validExp = false;
+            return last.valid && last.value == Integer.MAX_VALUE ? 0 : last.value;
         }
+        last = null;
         if (printError) System.out.println("Invalid expression; can't evaluate.");
         return 0;
     }
     
-    //Evaluates the tree and tells you if there are errors
-    public int eval() { return eval(true); }
+    //Evaluates the tree without printing anything. An overflow gives 0 and so does an invalid expression;
+    //result() tells which, if anything, went wrong.
+    public int eval() { return eval(false); }
+    
+    //Gives the result of the last eval(), with what went wrong and where if anything did. An invalid input
+    //has a result without being evaluated; a valid one has none (null) until eval() is called.
+    public ExpResult result() {
+        if (last != null || validInput) return last;
+        return invalid(new ExpResult(-1));
+    }
+    
+    //Rewrites one operation whose children have already been simplified, counting what it did in counts:
+    //0 for folded constants, 1 for identities and 2 for powers turned into multiplications.
+    //Nothing is rewritten in a way that could change a value, an overflow or a division by zero eval() reports:
+    //constants that overflow or divide by zero are left alone, and so are ones using 2147483647, since after
+    //an overflow eval() passes that on instead of working it out. Ones that come out negative are left alone
+    //too, since no notation can write a negative number so that it reads back. x^2 only becomes x*x when x
+    //is a leaf, so nothing gets worked out twice. x*0 and x^1 are left alone too, since x could be 2147483647:
+    //after an overflow eval() gives that for x*0 instead of 0, and it counts 2147483647^1 as an overflow.
+    private int simplify(char op, int left, int right, int[] counts) {
+        if (op(left) == ' ' && op(right) == ' ') {
+            int a = arena.val[left];
+            int b = arena.val[right];
+            if (a == Integer.MAX_VALUE || b == Integer.MAX_VALUE) return node(op, left, right);
+            ExpResult check = new ExpResult(-1);
+            int value = apply(op, a, b, check, false, false);
+            if (!check.overflow && !check.divByZero && value >= 0) {
+                counts[0]++;
+                return number(value);
+            }
+            return node(op, left, right);
+        }
+        int same = -1;
+        switch (op) {
+            case '+':
+                if (isNumber(right, 0)) same = left;
+                else if (isNumber(left, 0)) same = right;
+                break;
+            case '-':
+                if (isNumber(right, 0)) same = left;
+                break;
+            case '*':
+                if (isNumber(right, 1)) same = left;
+                else if (isNumber(left, 1)) same = right;
+                break;
+            case '/':
+                if (isNumber(right, 1)) same = left;
+                break;
+            case '^':
+                if (isNumber(right, 2) && isLeaf(left)) {
+                    counts[2]++;
+                    return node('*', left, left);
+                }
+                break;
+        }
+        if (same >= 0) {
+            counts[1]++;
+            return same;
+        }
+        return node(op, left, right);
+    }
+    
+    //Counts the nodes a subtree would have written out as a tree, counting shared nodes every time they're used
+    private int treeSize(int node) {
+        int[] sizes = new int[arena.size];
+        Walk walk = new Walk(node);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            if (isLeaf(n) || sizes[n] != 0) {
+                sizes[n] = Math.max(sizes[n], 1);
+                walk.pop();
+                continue;
+            }
+            int stage = walk.advance();
+            if (stage == 0) walk.push(arena.left[n]);
+            else if (stage == 1) walk.push(arena.right[n]);
+            else {
+                sizes[n] = 1 + sizes[arena.left[n]] + sizes[arena.right[n]];
+                walk.pop();
+            }
+        }
+        return sizes[node];
+    }
+    
+    //Builds a new copy of the tree with fresh ids from 0, shared again if the tree is shared.
+    //If counts isn't null every operation is simplified on the way, counting what was done.
+    private int rebuild(int start, int[] counts) {
+        NodeArena old = arena;
+        int[] rebuilt = new int[old.size]; //the new id for every old one, or -1 until it's made
+        Arrays.fill(rebuilt, -1);
+        arena = new NodeArena(old.size);
+        if (shared) interned = new HashMap<Shape, Integer>();
+        Walk walk = new Walk(start);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            if (rebuilt[n] >= 0) { //a shared node that's already done
+                walk.pop();
+                continue;
+            }
+            if (old.left[n] < 0) {
+                rebuilt[n] = old.op[n] == '$' ? leaf(VARIABLE - old.val[n]) : number(old.val[n]);
+                walk.pop();
+                continue;
+            }
+            int stage = walk.advance();
+            if (stage == 0) walk.push(old.left[n]);
+            else if (stage == 1) walk.push(old.right[n]);
+            else {
+                int left = rebuilt[old.left[n]];
+                int right = rebuilt[old.right[n]];
+                char op = (char) old.op[n];
+                rebuilt[n] = counts == null ? node(op, left, right) : simplify(op, left, right, counts);
+                walk.pop();
+            }
+        }
+        interned = null;
+        arena.trim();
+        return rebuilt[start];
+    }
+    
+    //Optimizes the tree before it's evaluated: works out every part that's only numbers (constant folding),
+    //drops operations that don't do anything, like x*1 or x+0, and turns x^2 into x*x, which is faster.
+    //Everything eval() reports stays the same, errors included. Shared subtrees stay shared.
+    //Gives a report of what was rewritten.
+    public String simplify() {
+        if (!validInput) return "Invalid expression; can't simplify.";
+        if (root < 0) return "Tree is empty; nothing to simplify.";
+        int before = arena.size;
+        int[] counts = new int[3];
+        root = rebuild(root, counts);
+        root = rebuild(root, null); //drops the nodes made for parts that got folded away
+        treeNodes = treeSize(root);
+        validExp = true;
+        last = null;
+        program = null;
+        sizes = null;
+        profile = null;
+        return "Folded " + counts[0] + " constant operation(s), removed " + counts[1] + " that did nothing and turned " +
+            counts[2] + " square(s) into multiplications; " + before + " nodes down to " + arena.size + ".";
+    }
+    
+    //Flattens the tree into a postfix program that can be run many times without walking the tree,
+    //or returns null if the expression is invalid
+    public ExpProgram compile() {
+        if (!validInput) return null;
+        int[] code = new int[32];
+        int size = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        Walk walk = new Walk(root);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            if (size + 2 > code.length) code = Arrays.copyOf(code, code.length * 2);
+            if (isLeaf(n)) {
+                code[size++] = isVariable(n) ? ExpProgram.LOAD : ExpProgram.PUSH;
+                code[size++] = arena.val[n];
+                maxDepth = Math.max(maxDepth, ++depth);
+                walk.pop();
+                continue;
+            }
+            int stage = walk.advance();
+            if (stage == 0) walk.push(arena.left[n]);
+            else if (stage == 1) walk.push(arena.right[n]);
+            else {
+                code[size++] = ExpProgram.opcode(op(n));
+                depth--;
+                walk.pop();
+            }
+        }
+        return new ExpProgram(Arrays.copyOf(code, size), maxDepth, variables.size());
+    }
+    
+    //Evaluates the expression with slots[i] as the value of the variable in slot i, keeping the value of every
+    //node so that when leaves change, only what's above them has to be worked out again.
+    //Gives null if the expression is invalid.
+    public ExpIncremental incremental(int[] slots) {
+        if (!validInput) return null;
+        return new ExpIncremental(arena.op, arena.val, arena.left, arena.right, arena.size, root, variables(), slots);
+    }
+    
+    //Writes the parsed expression in ExpBinary's format, so it can be loaded again without parsing it.
+    //The compiled program isn't written: a loaded tree compiles it from its nodes in one pass when it's needed.
+    public byte[] toBinary() {
+        boolean valid = validInput && root >= 0;
+        ExpBinary.Out out = new ExpBinary.Out(32 + (valid ? 2 * arena.size : 0));
+        out.putInt(ExpBinary.MAGIC);
+        out.put(ExpBinary.VERSION);
+        out.put((validInput ? ExpBinary.VALID : 0) | (shared ? ExpBinary.SHARED : 0));
+        out.put(Arrays.asList(NOTATIONS).indexOf(NotationDet));
+        out.varint(variables.size());
+        for (String name : variables) out.string(name);
+        int size = valid ? arena.size : 0; //an invalid tree keeps none of its nodes
+        out.varint(size);
+        out.varint(treeNodes);
+        out.varint(valid ? root + 1 : 0);
+        if (!validInput) {
+            out.put(parseError.ordinal());
+            out.varint(parseErrorAt + 1);
+        }
+        for (int n = 0; n < size; n++) {
+            int code = ExpBinary.CODES.indexOf(op(n));
+            if (isVariable(n)) out.node(code, arena.val[n]);
+            else if (isLeaf(n)) out.node(code, ExpBinary.zigzag(arena.val[n]));
+            else {
+                //children come just before their parents, the right one usually right before
+                out.node(code, n - arena.right[n] - 1);
+                out.varint(n - arena.left[n] - 1);
+            }
+        }
+        return out.toArray();
+    }
+    
+    //Reads an expression toBinary() wrote, starting at in's position and leaving it just after the expression.
+    //Nothing is scanned or parsed: the nodes go straight from the buffer into the tree's arrays.
+    //Throws IllegalArgumentException if the bytes aren't an expression in a version this class can read.
+    public static ExpTree fromBinary(ByteBuffer in) {
+        try {
+            if (in.getInt() != ExpBinary.MAGIC) throw new IllegalArgumentException("Not a binary expression");
+            byte version = in.get();
+            if (version < 1 || version > ExpBinary.VERSION) throw new IllegalArgumentException("Binary expression version " + version + " isn't supported");
+            ExpTree tree = new ExpTree();
+            int flags = in.get();
+            tree.validInput = tree.validExp = (flags & ExpBinary.VALID) != 0;
+            tree.shared = (flags & ExpBinary.SHARED) != 0;
+            int notation = in.get();
+            if (notation < 0 || notation >= NOTATIONS.length) throw new IllegalArgumentException("Unknown notation " + notation);
+            tree.NotationDet = NOTATIONS[notation];
+            int slots = ExpBinary.varint(in);
+            if (slots < 0 || slots > in.remaining()) throw new BufferUnderflowException();
+            for (int s = 0; s < slots; s++) tree.variables.add(ExpBinary.string(in));
+            int size = ExpBinary.varint(in);
+            if (size < 0 || size > in.remaining()) throw new BufferUnderflowException(); //every node takes a byte at least
+            tree.treeNodes = ExpBinary.varint(in);
+            if (tree.treeNodes < size) throw new IllegalArgumentException("A tree of " + size + " nodes can't have " + tree.treeNodes + " unshared");
+            tree.root = ExpBinary.varint(in) - 1;
+            if (tree.root < -1 || tree.root >= size) throw new IllegalArgumentException("Root " + tree.root + " isn't a node");
+            if (!tree.validInput) {
+                ExpResult.Kind[] kinds = ExpResult.Kind.values();
+                int kind = version < 2 ? ExpResult.Kind.INVALID.ordinal() : in.get();
+                if (kind < 0 || kind >= kinds.length) throw new IllegalArgumentException("Unknown error " + kind);
+                tree.parseError = kinds[kind];
+                tree.parseErrorAt = version < 2 ? -1 : ExpBinary.varint(in) - 1;
+            }
+            NodeArena arena = new NodeArena(size);
+            for (int n = 0; n < size; n++) {
+                int first = in.get();
+                char op = ExpBinary.CODES.charAt(first & 7);
+                int value = ExpBinary.nodeValue(in, first);
+                if (op == '$') {
+                    if (value < 0 || value >= slots) throw new IllegalArgumentException("Node " + n + " uses a slot with no variable");
+                    arena.add(op, value, -1, -1);
+                } else if (op == ' ') arena.add(op, ExpBinary.unzigzag(value), -1, -1);
+                else {
+                    int right = n - 1 - value;
+                    int left = n - 1 - ExpBinary.varint(in);
+                    if (left < 0 || left >= n || right < 0 || right >= n) throw new IllegalArgumentException("Node " + n + " has a child that isn't before it");
+                    arena.add(op, 0, left, right);
+                }
+            }
+            arena.trim();
+            tree.arena = arena;
+            tree.bindings = new int[slots];
+            return tree;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Binary expression is cut off");
+        }
+    }
+    
+    //Sets what's told about every parse and evaluation from now on, by every tree, or turns that off if it's null.
+    //With no listener, all it costs is reading one field per call.
+    public static void setListener(ExpListener l) { listener = l; }
+    
+    //Gives what's told about every parse and evaluation, or null if nothing is
+    public static ExpListener getListener() { return listener; }
+    
+    //Tells a listener, if there is one, about an evaluation that started at start, and gives its result back.
+    //Evaluating an invalid expression works nothing out, so there's nothing to tell.
+    private ExpResult evaluated(ExpListener l, long start, ExpResult result) {
+        if (l != null && result.valid) {
+            l.evaluated(this, notationName(), 1, result.overflow ? 1 : 0, result.divByZero ? 1 : 0, System.nanoTime() - start);
+        }
+        return result;
+    }
+    
+    //The notation listeners and ExpServer report: "prefix", "infix", "postfix", "empty", or "unknown" if the
+    //input had characters no notation allows
+    String notationName() { return NOTATION_NAMES[Math.max(Arrays.asList(NOTATIONS).indexOf(NotationDet), 0)]; }
+    
+    //Gives how often each operator is used, in the order of OPERATORS and counting a shared subtree every time
+    //it's used, and then how deep the tree is. It's worked out the first time, in two passes over the ids
+    //without a stack: parents come after their children, so going down the ids passes each node's uses on to
+    //its children, and going up works out each node's depth from its children's. ExpMetrics reads it
+    //directly, so it shouldn't be changed.
+    long[] profile() {
+        long[] p = profile;
+        if (p != null) return p;
+        p = new long[OPERATORS.length() + 1];
+        if (validInput && root >= 0) {
+            long[] uses = new long[root + 1];
+            uses[root] = 1;
+            for (int n = root; n >= 0; n--) {
+                if (isLeaf(n) || uses[n] == 0) continue;
+                uses[arena.left[n]] += uses[n];
+                uses[arena.right[n]] += uses[n];
+                p[OPERATORS.indexOf(op(n))] += uses[n];
+            }
+            int[] depths = new int[root + 1];
+            for (int n = 0; n <= root; n++) depths[n] = isLeaf(n) ? 1 : 1 + Math.max(depths[arena.left[n]], depths[arena.right[n]]);
+            p[OPERATORS.length()] = depths[root];
+        }
+        return profile = p;
+    }
+    
+    //Gives how many times an operator is worked out in one evaluation, counting a shared subtree every time it's used
+    public long operations(char op) {
+        int i = OPERATORS.indexOf(op);
+        return i < 0 ? 0 : profile()[i];
+    }
+    
+    //Gives how many levels the tree has, with the leaves on level 1, or 0 if it's empty or invalid
+    public int depth() { return (int) profile()[OPERATORS.length()]; }
     
-    //Used for drawing the tree
-    private String insertString(String original, String nodeString, int pos) {
-        return original.substring(0,pos) + nodeString + original.substring(pos + nodeString.length());
+    //Gives the names of the variables in the expression, in order of their slots
+    public String[] variables() { return variables.toArray(new String[0]); }
+    
+    //Gives the slot of a variable, or -1 if the expression doesn't use it
+    public int slot(String name) { return variables.indexOf(name); }
+    
+    //Sets the value a variable has when eval() is called
+    public void bind(String name, int value) {
+        int s = slot(name);
+        if (s >= 0) {
+            bindings[s] = value;
+            last = null;
+        }
+    }
+    
+    //Gives the compiled program, compiling it the first time; if two threads race they just both compile it
+    ExpProgram program() {
+        ExpProgram p = program;
+        if (p == null) program = p = compile();
+        return p;
+    }
+    
+    //Evaluates the expression with slots[i] as the value of the variable in slot i, without printing anything.
+    //Parsing happens once, so this is the way to go for the same formula over lots of values,
+    //and it's safe to call from many threads at once.
+    //Gives 0 if the expression is invalid, overflows or divides by zero.
+    public int eval(int[] slots) {
+        if (!validInput) return 0;
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        ExpResult result = evaluated(l, start, program().evaluate(slots));
+        return result.dividedByZero() ? 0 : result.value();
+    }
+    
+    //Evaluates the expression for every row of a table, where columns[i][row] is the value of the variable
+    //in slot i. Each row's value goes into out[row], or 0 if that row overflows or divides by zero.
+    //Returns how many rows had errors.
+    public int eval(int[][] columns, int[] out) {
+        if (!validInput) {
+            Arrays.fill(out, 0);
+            return out.length;
+        }
+        if (listener == null) return program().run(columns, out);
+        //the listener needs to know which errors were which
+        long[] overflowMask = new long[(out.length + 63) / 64];
+        long[] divByZeroMask = new long[overflowMask.length];
+        eval(columns, out, overflowMask, divByZeroMask);
+        return ExpProgram.clearErrors(out, overflowMask, divByZeroMask);
+    }
+    
+    //Evaluates the expression for every row of a table a chunk of rows at a time, giving out[row] exactly
+    //what eval() would, and marking rows with errors in bitmasks instead of printing anything:
+    //bit (row % 64) of overflowMask[row / 64] is set if that row overflowed, and the same for divByZeroMask
+    public void eval(int[][] columns, int[] out, long[] overflowMask, long[] divByZeroMask) {
+        if (!validInput) {
+            Arrays.fill(out, 0);
+            return;
+        }
+        ExpListener l = listener;
+        long start = l == null ? 0 : System.nanoTime();
+        program().runBatch(columns, out, overflowMask, divByZeroMask);
+        if (l == null) return;
+        long nanos = System.nanoTime() - start;
+        long overflows = 0;
+        long divisions = 0;
+        for (int w = 0; w < (out.length + 63) / 64; w++) {
+            overflows += Long.bitCount(overflowMask[w]);
+            divisions += Long.bitCount(divByZeroMask[w]);
+        }
+        l.evaluated(this, notationName(), out.length, overflows, divisions, nanos);
+    }
+    
+    //Used for drawing the tree: writes over part of a row in place, so nothing is copied but what's written
+    private char[] insertString(char[] row, String nodeString, int pos) {
+        nodeString.getChars(0, nodeString.length(), row, pos);
+        return row;
+    }
+    
+    //What draw() works on: the rows of the picture, whether everything fit in it, and the evaluated values
+    //to show (null if there aren't any). Keeping these out of the fields means drawing changes nothing.
+    private static class Drawing {
+        public char[][] rows = new char[16][80];
+        public boolean allDrawn = true; //turned false if not everything fits in the drawing
+        public ExpResult values;
     }
     
     //Recursively edits an array of strings (rows) to give a graphical description of the tree
-    private String[] draw(ExpTreeNode node, String[] drawing, int level, int parPos, int dir) {
-        if (node == null) return drawing;
+    private Drawing draw(int node, Drawing drawing, int level, int parPos, int dir) {
+        if (node < 0) return drawing;
         //Things that don't fit in the picture
         if (level > 4) {
             if (level == 5) {
-                drawing[14] = insertString(drawing[14], "|", parPos - 1);
-                drawing[15] = insertString(drawing[15], "X", parPos - 1);
+                drawing.rows[14] = insertString(drawing.rows[14], "|", parPos - 1);
+                drawing.rows[15] = insertString(drawing.rows[15], "X", parPos - 1);
             }
-            allDrawn = false;
+            drawing.allDrawn = false;
             return drawing;
         }
         //Some calculations for nice spacing
@@ -403,51 +1501,73 @@ public class ExpTree {
         int pos = (int) Math.floor(parPos + spread / 2.0 * dir) - 1;
         parPos--;
         //Inserts the actual value or operator
-        if (pos + node.toString().length() > 80 | node.toString().length() > spread - 1) {
-            drawing[level * 3 + 1] = insertString(drawing[level * 3 + 1], "X", pos);
-            allDrawn = false;
-        } else drawing[level * 3 + 1] = insertString(drawing[level * 3 + 1], node.toString(), pos);
+        String label = label(node);
+        if (pos + label.length() > 80 | label.length() > spread - 1) {
+            drawing.rows[level * 3 + 1] = insertString(drawing.rows[level * 3 + 1], "X", pos);
+            drawing.allDrawn = false;
+        } else drawing.rows[level * 3 + 1] = insertString(drawing.rows[level * 3 + 1], label, pos);
         //Prints the value in parentheses next to operations
-        if (evaluated && node.op != ' ') {
-            String value = (node.val == Integer.MAX_VALUE && overflow) ? "(BIG)" : "(" + node.val + ")";
+        if (drawing.values != null && !isLeaf(node)) {
+            int val = drawing.values.nodeValue(node);
+            String value = (val == Integer.MAX_VALUE && drawing.values.overflow) ? "(BIG)" : "(" + val + ")";
             if (pos + value.length() > 78 | value.length() > spread - 3) {
-                drawing[level * 3 + 1] = insertString(drawing[level * 3 + 1], "X", pos + 2);
-                allDrawn = false;
-            } else drawing[level * 3 + 1] = insertString(drawing[level * 3 + 1], value, pos + 2);
+                drawing.rows[level * 3 + 1] = insertString(drawing.rows[level * 3 + 1], "X", pos + 2);
+                drawing.allDrawn = false;
+            } else drawing.rows[level * 3 + 1] = insertString(drawing.rows[level * 3 + 1], value, pos + 2);
         }
         //Builds the vertical and horizontal lines that give the tree structure
         if (level > 0) {
             if (dir == -1) {
                 StringBuilder horizLine = new StringBuilder();
                 for (int i = 0; i < spread - 1; i++) horizLine.append("_");
-                drawing[level * 3 - 1] = insertString(drawing[level * 3 - 1], horizLine.toString(), pos + 1);
-                drawing[level * 3 - 1] = insertString(drawing[level * 3 - 1], "|", parPos);
+                drawing.rows[level * 3 - 1] = insertString(drawing.rows[level * 3 - 1], horizLine.toString(), pos + 1);
+                drawing.rows[level * 3 - 1] = insertString(drawing.rows[level * 3 - 1], "|", parPos);
             }
-            drawing[level * 3] = insertString(drawing[level * 3], "|", pos);
+            drawing.rows[level * 3] = insertString(drawing.rows[level * 3], "|", pos);
         }
-        return draw(node.right, draw(node.left, drawing, level + 1, pos + 1, -1), level + 1, pos + 1, 1);
+        return draw(arena.right[node], draw(arena.left[node], drawing, level + 1, pos + 1, -1), level + 1, pos + 1, 1);
     }
     
-    //Returns a string with the drawing of a tree, plus a message about whether it is completely drawn
+    //Returns a string with the drawing of a tree, plus a message about whether it is completely drawn.
+    //Only 5 levels fit; drawing() draws all of them.
     public String toString() {
-        allDrawn = true;
         if (!validExp) return "Invalid expression; can't draw a tree.";
-        if (root == null) return "Tree is empty; nothing to see here.";
-        String[] drawing = new String[16];
-        StringBuilder line = new StringBuilder();
-        for (int j = 0; j < 80; j++) line.append(" ");
-        String emptyLine = line.toString();
-        for (int i = 0; i < drawing.length; i++) drawing[i] = emptyLine;
-        String tree = String.join("\n", draw(root, drawing, 0, 0, 1));
-        String message = allDrawn ? "Tree drawn successfully." :
+        if (root < 0) return "Tree is empty; nothing to see here.";
+        Drawing drawing = new Drawing();
+        drawing.values = last;
+        for (char[] row : drawing.rows) Arrays.fill(row, ' ');
+        draw(root, drawing, 0, 0, 1);
+        StringBuilder tree = new StringBuilder(drawing.rows.length * 81);
+        for (char[] row : drawing.rows) tree.append(row).append('\n');
+        String message = drawing.allDrawn ? "Tree drawn successfully." :
             "Some parts of the tree don't fit in the drawing (indicated by Xs).";
         return (message + "\n" + tree).trim();
     }
     
+    //Lays out the whole tree to draw as text, DOT or SVG, showing the values of the last eval() if there was one.
+    //Gives null if the expression is invalid or empty, or if it comes to more than ExpDrawing.MAX_NODES nodes
+    //drawn out, counting a shared subtree every time it's used.
+    public ExpDrawing drawing() {
+        if (!validExp || root < 0 || drawnSize() > ExpDrawing.MAX_NODES) return null;
+        return new ExpDrawing(arena.op, arena.val, arena.left, arena.right, root, variables(), last);
+    }
+    
+    //How many nodes the tree comes to drawn out, or just over ExpDrawing.MAX_NODES if it's more than that.
+    //Ids go children first, so one pass over them works it out, without overflowing however much is shared.
+    private long drawnSize() {
+        if (!shared) return arena.size;
+        long[] drawn = new long[arena.size];
+        for (int n = 0; n < arena.size; n++) {
+            if (arena.left[n] < 0) drawn[n] = 1;
+            else drawn[n] = Math.min(1 + drawn[arena.left[n]] + drawn[arena.right[n]], ExpDrawing.MAX_NODES + 1L);
+        }
+        return drawn[root];
+    }
+    
     //Used for describing an operation in words
     private String opNoun(char c) {
         switch (c) {
-            case ' ': return "value";
+            case ' ': case '$': return "value";
             case '+': return "addition result";
             case '-': return "subtraction result";
             case '*': return "multiplication result";
@@ -459,9 +1579,9 @@ public class ExpTree {
     }
     
     //Used for giving instructions
-    private String operation(char c, ExpTreeNode a, ExpTreeNode b) {
-        String aString = "the " + opNoun(a.op) + " " + a.val;
-        String bString = "the " + opNoun(b.op) + " " + b.val;
+    private String operation(char c, int a, int b, ExpResult values) {
+        String aString = "the " + opNoun(op(a)) + " " + (isVariable(a) ? "of " + label(a) + ", " : "") + values.nodeValue(a);
+        String bString = "the " + opNoun(op(b)) + " " + (isVariable(b) ? "of " + label(b) + ", " : "") + values.nodeValue(b);
         switch (c) {
             case '+': return "add " + aString + " and " + bString;
             case '-': return "subtract " + bString + " from " + aString;
@@ -490,46 +1610,58 @@ public class ExpTree {
         }
     }  
     
-    //Recursively adds instructions to an array, using the evaluated tree
-    private ArrayList<String> instruct(ExpTreeNode node, ArrayList<String> steps, Position i) {
-        if (node == null) return steps;
-        if (!node.isLeaf()) {
-            steps = instruct(node.right, instruct(node.left, steps, i), i);
-            StringBuilder step = new StringBuilder();
-            if (node == root) {
-                if (steps.size() == 0) step.append("All you have to do is ");
-                else if (steps.size() == 1) step.append("Then, ");
-                else step.append("Finally, ");
+    //Adds instructions to a list children-first, using the evaluated tree
+    private ArrayList<String> instruct(int node, ArrayList<String> steps, ExpResult values) {
+        Walk walk = new Walk(node);
+        while (!walk.isEmpty()) {
+            int n = walk.node();
+            if (isLeaf(n)) {
+                walk.pop();
+                continue;
+            }
+            int stage = walk.advance();
+            if (stage == 0) walk.push(arena.left[n]);
+            else if (stage == 1) walk.push(arena.right[n]);
+            else {
+                walk.pop();
+                StringBuilder step = new StringBuilder();
+                if (n == root) {
+                    if (steps.size() == 0) step.append("All you have to do is ");
+                    else if (steps.size() == 1) step.append("Then, ");
+                    else step.append("Finally, ");
+                }
+                else step.append(ordinal(steps.size() + 1) + ", ");
+                step.append(operation(op(n), arena.left[n], arena.right[n], values));
+                step.append(" to get " + Integer.toString(values.nodeValue(n)) + ".");
+                steps.add(step.toString());
             }
-            else step.append(ordinal(i.val) + ", ");
-            step.append(operation(node.op, node.left, node.right));
-            step.append(" to get " + Integer.toString(node.val) + ".");
-            steps.add(step.toString());
-            i.val++;
         }
         return steps;
     }
     
     //Returns a semi-normal-sounding paragraph describing how to evaluate the expression
     public String instruct() {
-        if (!evaluated) this.eval(false);
-        if (overflow) return "Integer overflow; I guess you've gotta do it by hand.";
+        if (last == null) this.eval(false);
+        ExpResult values = last;
+        if (values != null && values.overflow) return "Integer overflow; I guess you've gotta do it by hand.";
         if (!validExp) return "Invalid expression; you're on your own, kid.";
-        if (root == null) return "Take nothing and do nothing to it; you get nothing.";
-        String[] steps = instruct(root, new ArrayList<String>(), new Position(1)).toArray(new String[0]);
-        if (steps.length == 0) return "Take " + root.val + " and do nothing to it; you get " + root.val + ".";
-        return String.join(" ", steps) + " The final result is " + Integer.toString(root.val) + ".";
+        if (root < 0) return "Take nothing and do nothing to it; you get nothing.";
+        String[] steps = instruct(root, new ArrayList<String>(), values).toArray(new String[0]);
+        int result = values.nodeValue(root);
+        if (steps.length == 0) return "Take " + result + " and do nothing to it; you get " + result + ".";
+        return String.join(" ", steps) + " The final result is " + Integer.toString(result) + ".";
     }
     
     //makes a tree and prints out a bunch of stuff all in a row, as required by the assignment
     public static void doItAll(String input) {
-        ExpTree myExpTree = new ExpTree(input);
+        ExpTree myExpTree = new ExpTree();
+        myExpTree.fill(input, true);
         System.out.println("\nPrefix:      " + myExpTree.prefix());
         System.out.println("Postfix:     " + myExpTree.postfix());
         System.out.println("Infix:       " + myExpTree.infix());
         System.out.print("\nFinal value: ");
-        int result = myExpTree.eval();
-        if (myExpTree.validExp && !myExpTree.overflow) System.out.println(result);
+        int result = myExpTree.eval(true);
+        if (myExpTree.validExp && !myExpTree.last.overflow) System.out.println(result);
         System.out.println("\nDrawing:\n\n" + myExpTree);
         System.out.println("\nInstructions:\n\n" + myExpTree.instruct());
     }
@@ -557,7 +1689,8 @@ public class ExpTree {
                          "'1 + 1', which evaluates to 2. A longer example is\n" +
                          "((((8*7)+4)*5)+((2+2)*(3*7)))         which evaluates to 384.\n" +
                          "Parentheses may be used for infix notation, but aren't required.\n" +
-                         "Please DO NOT USE SPACES for infix notation.";
+                         "Please DO NOT USE SPACES for infix notation.\n\n" +
+                         "Names like x or rate can be used as variables in any notation. Here they're worth 0.";
         
         String prompt = "Enter an expression (d for details or q to quit): ";
         
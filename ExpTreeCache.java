@@ -0,0 +1,148 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+* A thread-safe cache of parsed expressions, so the same input text only gets scanned, detected and
+* built into a tree once. Inputs are normalized first (outer spaces trimmed and runs of spaces
+* squeezed to one), which never changes how they parse. Where an invalid input goes wrong is still
+* counted in the input as given, spaces and all, not in the normalized one.
+* Invalid inputs are cached too, so repeating a bad expression fails fast.
+* The cached trees themselves are never handed out: get() gives a fresh copy each time, so callers
+* can bind and fill their tree however they like. The copies share the cached tree's nodes and
+* compiled program, which is safe since those never change once built. The program is compiled when the
+* tree is cached, so its runs count toward ExpJit promotion across every copy, and a hot expression gets
+* turned into bytecode once however many times it's looked up.
+* When the cache holds more than maxEntries expressions or about maxBytes of trees, the least recently
+* used ones are evicted.
+*/
+public class ExpTreeCache {
+    
+    //Rough sizes used for the byte budget
+    private static final int ENTRY_BYTES = 96; //the map entry, the ExpTree and its lists
+    private static final int NODE_BYTES = 21; //one node in the tree's arena (an operator byte and three ints) and its two ints of program
+    
+    //An expression that's been parsed, and roughly how much memory it takes
+    private static class Entry {
+        final ExpTree tree;
+        final long bytes;
+        
+        //Constructor
+        Entry(ExpTree tree, long bytes) {
+            this.tree = tree;
+            this.bytes = bytes;
+        }
+    }
+    
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    
+    //Constructors
+    public ExpTreeCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.maxBytes = Math.max(maxBytes, 1);
+    }
+    
+    public ExpTreeCache() { this(1024, 64L << 20); } //1024 expressions or 64MB, whichever comes first
+    
+    //Trims the outer spaces and squeezes runs of spaces into one
+    static String normalize(String input) {
+        int start = 0;
+        int end = input.length();
+        while (start < end && input.charAt(start) == ' ') start++;
+        while (end > start && input.charAt(end - 1) == ' ') end--;
+        boolean squeezed = true;
+        for (int i = start + 1; i < end; i++) {
+            if (input.charAt(i) == ' ' && input.charAt(i - 1) == ' ') {
+                squeezed = false;
+                break;
+            }
+        }
+        if (squeezed) return input.substring(start, end);
+        StringBuilder out = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c != ' ' || input.charAt(i - 1) != ' ') out.append(c);
+        }
+        return out.toString();
+    }
+    
+    //Gives a tree for the input, parsing it only if it isn't cached yet. Nothing gets printed. If the input is
+    //invalid, the tree's parseErrorOffset() and result().offset() count from the start of the input given.
+    public ExpTree get(String input) {
+        String key = normalize(input);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null) hits++;
+            else misses++;
+        }
+        if (entry == null) {
+            //parsing happens outside the lock so other threads aren't held up by it
+            ExpTree tree = new ExpTree();
+            tree.fill(key, false);
+            tree.program(); //compiled now, so every copy shares it
+            entry = new Entry(tree, ENTRY_BYTES + 2L * key.length() + (long) NODE_BYTES * tree.size());
+            synchronized (this) {
+                Entry raced = entries.get(key);
+                if (raced != null) entry = raced;
+                else {
+                    entries.put(key, entry);
+                    bytes += entry.bytes;
+                    evict();
+                }
+            }
+        }
+        ExpTree copy = new ExpTree(entry.tree);
+        if (copy.parseErrorOffset() >= 0 && key.length() != input.length()) copy.moveParseError(rawOffset(input, copy.parseErrorOffset()));
+        return copy;
+    }
+    
+    //Finds the character of the input that ended up at the offset given in normalize(input)
+    static int rawOffset(String input, int offset) {
+        int i = 0;
+        while (i < input.length() && input.charAt(i) == ' ') i++;
+        for (int kept = 0; i < input.length(); i++) {
+            if (input.charAt(i) == ' ' && input.charAt(i - 1) == ' ') continue; //squeezed out
+            if (kept++ == offset) return i;
+        }
+        return i;
+    }
+    
+    //Drops least recently used entries until the cache is within both budgets
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().bytes;
+            oldest.remove();
+            evictions++;
+        }
+    }
+    
+    //Empties the cache, keeping the statistics
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+    
+    public synchronized int size() { return entries.size(); }
+    
+    public synchronized long bytes() { return bytes; }
+    
+    public synchronized long hits() { return hits; }
+    
+    public synchronized long misses() { return misses; }
+    
+    public synchronized long evictions() { return evictions; }
+    
+    //Gives a one-line summary of the statistics
+    public synchronized String toString() {
+        return "Entries: " + entries.size() + ", about " + bytes + " bytes, " + hits + " hits, " + misses +
+            " misses, " + evictions + " evictions.";
+    }
+}
@@ -1,3 +1,13 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
 /**
 * Run this to try a whole bunch of different inputs at once. Add to the array of strings if necessary.
 */
@@ -21,6 +31,7 @@ public class TestExpTree
         "I lost the game.", //Austin's idea
         "++++", //Another of Austin's ideas
         "1+2*3-4%5^2/3",
+        "2^3^2", //exponents group from the right
         "+ * + * 8 7 4 5 * + 2 2 * 3 7 +", //prefix with extra operand
         "+ * + * 8 7 4 5 * + 2 2 * 3", //prefix missing a number
         "8 7 * 4 + 5 * 2 2 + 3 7 * * + 9", //postfix with extra number
@@ -35,6 +46,8 @@ public class TestExpTree
         "2147483647-1",
         "2147483647+1",
         "2147483647+0+1",
+        "x*x+2*x+1", //variables
+        "rate 100 * bonus +", //variables in postfix
     };
         
         //Does all the tree methods for every test case
@@ -44,5 +57,433 @@ public class TestExpTree
             ExpTree.main(inputs[i].split(" "));
             if (i < inputs.length - 1) System.out.println();
         }
+        
+        //Compiled programs should give the same values as eval()
+        System.out.println("\n----- COMPILED PROGRAMS ------\n");
+        for (String input : inputs) {
+            ExpTree tree = new ExpTree(input);
+            ExpProgram program = tree.compile();
+            int value = tree.eval();
+            if (program != null) {
+                System.out.println("\"" + input + "\": eval() gives " + value + ", compiled gives " + program.run());
+            }
+        }
+        
+        //One parse, evaluated for a whole column of values
+        System.out.println("\n----- VARIABLES ------\n");
+        ExpTree formula = new ExpTree("x*x+2*x+1");
+        int[][] columns = {{0, 1, 2, 3, -5, 46340}};
+        int[] out = new int[columns[0].length];
+        int errors = formula.eval(columns, out);
+        for (int row = 0; row < out.length; row++) {
+            System.out.println("x = " + columns[0][row] + " gives " + out[row]);
+        }
+        System.out.println(errors + " row(s) had errors.");
+        formula.bind("x", 3);
+        System.out.println("Bound x = 3, eval() gives " + formula.eval());
+        
+        //Programs run often enough get turned into JVM bytecode, which should give the same values
+        System.out.println("\n----- HOT PROGRAMS ------\n");
+        ExpProgram hot = new ExpTree("(x+1)*(x-1)/(x%7)+x^3").compile();
+        int[][] xs = new int[1][ExpJit.threshold() + 1000];
+        for (int row = 0; row < xs[0].length; row++) xs[0][row] = row * 7919 - 50000;
+        int[] expected = new int[xs[0].length];
+        long[] overflowMask = new long[(expected.length + 63) / 64];
+        long[] divByZeroMask = new long[overflowMask.length];
+        hot.runBatch(xs, expected, overflowMask, divByZeroMask);
+        int mismatches = 0;
+        for (int row = 0; row < xs[0].length; row++) {
+            int value = hot.run(new int[] {xs[0][row]});
+            boolean failed = ((overflowMask[row / 64] | divByZeroMask[row / 64]) >>> row & 1) != 0;
+            if (value != expected[row] || failed != (hot.overflowed() | hot.dividedByZero())) mismatches++;
+        }
+        System.out.println("Promoted: " + hot.isPromoted() + ", programs promoted so far: " + ExpJit.promoted());
+        System.out.println(mismatches + " mismatch(es) between bytecode and batch results.");
+        
+        //Every input twice through a small cache, plus one with extra spaces
+        System.out.println("\n----- CACHE ------\n");
+        ExpTreeCache cache = new ExpTreeCache(64, 1 << 20);
+        for (int round = 0; round < 2; round++) {
+            for (String input : inputs) cache.get(input);
+        }
+        ExpTree cached = cache.get("  +   * + * 8 7 4 5 * + 2 2 * 3 7 ");
+        System.out.println(cached.notation() + " " + cached.prefix() + " = " + cached.eval());
+        for (String padded : new String[] {"1 + a#", "1    +    a#", "   1  +  a#  "}) {
+            System.out.println("\"" + padded + "\" goes wrong at " + cache.get(padded).parseErrorOffset());
+        }
+        long promotedBefore = ExpJit.promoted();
+        for (int i = 0; i <= ExpJit.threshold(); i++) cache.get("y*y-3*y").eval(new int[] {i});
+        System.out.println("A fresh copy for every run, and the shared program still got promoted: " + (ExpJit.promoted() > promotedBefore));
+        System.out.println(cache);
+        
+        //The same subtrees over and over, built once each when sharing
+        System.out.println("\n----- SHARED SUBEXPRESSIONS ------\n");
+        StringBuilder repeated = new StringBuilder("(2+2)*(3*7)");
+        for (int i = 1; i < 500; i++) repeated.append("+(2+2)*(3*7)");
+        ExpTree plain = new ExpTree(repeated.toString());
+        ExpTree dag = new ExpTree();
+        dag.fillShared(repeated.toString());
+        System.out.println(dag.sharing());
+        System.out.println("Plain tree: " + plain.eval() + ", shared tree: " + dag.eval());
+        dag.fillShared("(x+1)*(x+1)^(x+1)");
+        dag.bind("x", 2);
+        System.out.println(dag.sharing());
+        System.out.println(dag.infix() + " = " + dag.eval());
+        System.out.println(dag);
+        
+        //Constants worked out ahead of time and operations that do nothing dropped, giving the same values
+        System.out.println("\n----- SIMPLIFIED ------\n");
+        for (String input : new String[] {"(x+0)*1+(2+3)*4-y^2", "x*(2^3^2-512)+7/(3-3)", "2147483647+1+x", "x+(1-2)*3"}) {
+            ExpTree simple = new ExpTree(input);
+            simple.bind("x", 5);
+            simple.bind("y", 3);
+            int before = simple.eval();
+            System.out.println(simple.simplify());
+            //what's written out has to parse back into something with the same value
+            for (String written : new String[] {simple.prefix(), simple.postfix(), simple.infix(), simple.infix(true)}) {
+                ExpTree again = new ExpTree(written);
+                again.bind("x", 5);
+                again.bind("y", 3);
+                if (again.parseError() != ExpResult.Kind.NONE || again.eval() != before) {
+                    System.out.println("\"" + written + "\" doesn't read back as the same expression");
+                }
+            }
+            System.out.println(simple.infix() + " gives " + simple.eval() + ", before it gave " + before);
+        }
+        
+        //Values too big for an int, worked out exactly, with longs when they fit and BigIntegers when they don't
+        System.out.println("\n----- EXACT ------\n");
+        for (String input : new String[] {"2147483647+1", "(2^10)+(2^(3*20))", "2^3^2", "2^10000", "2^(0-1)+7/0"}) {
+            ExpTree exact = new ExpTree();
+            exact.fill(input, false);
+            ExpResult result = exact.evaluateExact(new int[0]);
+            if (result.number() == null) {
+                System.out.println(input + ": " + result);
+                continue;
+            }
+            String number = result.number().toString();
+            if (number.length() > 40) number = number.substring(0, 20) + "... (" + number.length() + " digits)";
+            System.out.println(input + " = " + number + " as a " + result.number().getClass().getSimpleName() +
+                (result.isOk() ? "" : ", " + result.error()));
+        }
+        ExpTree domains = new ExpTree();
+        domains.fill("(x*x*x)^3", false);
+        for (ExpDomain<?> domain : new ExpDomain<?>[] {ExpDomain.INT, ExpDomain.LONG, ExpDomain.BIG}) {
+            System.out.println(domains.infix() + " with x = 1000 in " + domain + ": " + domains.evaluate(domain, new int[] {1000}));
+        }
+        //-1 to an even negative power is 1 and to an odd one is -1, in every domain
+        for (String input : new String[] {"(0-1)^(0-2)", "(0-1)^(0-3)"}) {
+            domains.fill(input, false);
+            StringBuilder line = new StringBuilder(input + ":");
+            for (ExpDomain<?> domain : new ExpDomain<?>[] {ExpDomain.INT, ExpDomain.LONG, ExpDomain.BIG}) {
+                line.append(' ').append(domain).append(' ').append(domains.evaluate(domain, new int[0]).value());
+            }
+            System.out.println(line.append(", exact ").append(domains.evaluateExact(new int[0]).value()));
+        }
+        
+        //Postfix evaluated straight from a Reader, as it's read, without building a tree
+        System.out.println("\n----- STREAMING ------\n");
+        ExpStream stream = new ExpStream();
+        stream.bind("rate", 7);
+        stream.bind("bonus", 3);
+        StringBuilder longPostfix = new StringBuilder("1");
+        for (int i = 0; i < 100000; i++) longPostfix.append(' ').append(i % 9).append(i % 2 == 0 ? " +" : " -");
+        StringBuilder longName = new StringBuilder("rate");
+        for (int i = 0; i < 1000000; i++) longName.append('s');
+        for (String input : new String[] {"8 7 * 4 + 5 * 2 2 + 3 7 * * +", "rate 100 * bonus +", "2 0 / 1 +", "1 2", longPostfix.toString(),
+            "rate 100 *\n", "8 7 *\r\n4 +\n", longName.append(" 1 +").toString()}) {
+            try {
+                ExpResult result = stream.evaluate(new StringReader(input));
+                System.out.println("Streamed " + stream.tokens() + " tokens, stack depth at most " + stream.maxDepth() + ": " + result);
+            } catch (IOException e) {
+                System.out.println("Couldn't read the stream: " + e.getMessage());
+            }
+        }
+        
+        //Every test case written to a file and evaluated in parallel, one result per line in the same order
+        System.out.println("\n----- BATCH FILE ------\n");
+        try {
+            Path batchIn = Files.createTempFile("expressions", ".txt");
+            Path batchOut = Files.createTempFile("results", ".txt");
+            Files.write(batchIn, Arrays.asList(inputs));
+            ExpBatch batch = new ExpBatch();
+            batch.run(batchIn, batchOut);
+            List<String> results = Files.readAllLines(batchOut);
+            for (int i = 0; i < results.size(); i++) System.out.println("\"" + inputs[i] + "\": " + results.get(i));
+            System.out.println(batch.lines() + " lines, " + batch.errors() + " with errors.");
+            //a few megabytes is split so every thread of the pool gets work, and the results stay in order
+            java.util.ArrayList<String> many = new java.util.ArrayList<String>();
+            for (int i = 0; i < 5000; i++) many.addAll(Arrays.asList(inputs));
+            Files.write(batchIn, many);
+            java.util.concurrent.ForkJoinPool four = new java.util.concurrent.ForkJoinPool(4);
+            ExpBatch split = new ExpBatch(four, 8 << 20);
+            split.run(batchIn, batchOut);
+            four.shutdown();
+            List<String> manyResults = Files.readAllLines(batchOut);
+            boolean inOrder = manyResults.size() == many.size();
+            for (int i = 0; inOrder && i < manyResults.size(); i++) inOrder = manyResults.get(i).equals(results.get(i % results.size()));
+            System.out.println(split.lines() + " lines in " + Files.size(batchIn) + " bytes, split into " + split.chunks() +
+                " chunks on 4 threads, same results in the same order: " + inOrder);
+            Files.delete(batchIn);
+            Files.delete(batchOut);
+        } catch (IOException e) {
+            System.out.println("Couldn't run the batch: " + e.getMessage());
+        }
+        
+        //A wide, balanced tree with its big subtrees evaluated at the same time, giving the same result
+        System.out.println("\n----- PARALLEL ------\n");
+        String[] level = new String[1 << 18];
+        for (int i = 0; i < level.length; i++) level[i] = i % 5 == 0 ? "x" : "" + (i % 7 + 1);
+        for (int width = level.length; width > 1; width /= 2) {
+            for (int i = 0; i < width / 2; i++) level[i] = "(" + level[2 * i] + "+-".charAt(i % 2) + level[2 * i + 1] + ")";
+        }
+        ExpTree wide = new ExpTree(level[0]);
+        for (int x : new int[] {3, 2147483647}) {
+            int[] slots = {x};
+            System.out.println("x = " + x + ": " + wide.size() + " nodes, sequential " + wide.evaluate(slots) +
+                ", parallel " + wide.evaluateParallel(slots));
+        }
+        
+        //Random expressions through every other way of evaluating them, which should all agree with eval(),
+        //plus one that gets % wrong on purpose, to see its first failure shrunk down
+        System.out.println("\n----- FUZZING ------\n");
+        ExpFuzz fuzz = new ExpFuzz(new ExpGenerator(2024));
+        fuzz.addAll();
+        fuzz.add("broken", input -> {
+            ExpTree tree = new ExpTree();
+            tree.fill(input.replace('%', '/'), false);
+            int[] slots = new int[tree.variables().length];
+            for (int s = 0; s < slots.length; s++) slots[s] = ExpFuzz.value(tree.variables()[s]);
+            return tree.evaluate(slots);
+        });
+        fuzz.run(5000, 4);
+        System.out.println(fuzz);
+        
+        //A million nodes kept evaluated, where changing a leaf only works out what's above it again
+        System.out.println("\n----- INCREMENTAL ------\n");
+        level = new String[1 << 19];
+        for (int i = 0; i < level.length; i++) level[i] = i % 5 == 0 ? "x" : "" + (i % 7 + 1);
+        for (int width = level.length; width > 1; width /= 2) {
+            for (int i = 0; i < width / 2; i++) level[i] = "(" + level[2 * i] + "+-".charAt(i % 2) + level[2 * i + 1] + ")";
+        }
+        ExpTree million = new ExpTree();
+        million.fill(level[0], false);
+        ExpIncremental live = million.incremental(new int[] {3});
+        System.out.println(million.size() + " nodes, x = 3 gives " + live.result() + ", evaluate() gives " + million.evaluate(new int[] {3}));
+        int rightmost = live.node("RRRRRRRRRRRRRRRRRRR");
+        int old = live.get(rightmost);
+        live.set(rightmost, 1000);
+        System.out.println("Rightmost leaf set from " + old + " to 1000: " + live.result() + ", " + live.recomputed() + " operations worked out again");
+        live.set(rightmost, old);
+        live.bind("x", 7);
+        System.out.println("Leaf set back and x = 7 at once: " + live.result() + ", evaluate() gives " + million.evaluate(new int[] {7}) +
+            ", " + live.recomputed() + " operations worked out again in all");
+        
+        //Notations written straight into a StringBuilder or a file, and infix with only the parentheses it needs
+        System.out.println("\n----- SERIALIZERS ------\n");
+        for (String input : new String[] {"((8*7)+4)*5+(2+2)*(3*7)", "1-(2-3)", "(2^3)^2", "2^(3^2)", "(x+y)*(x-y)%7", "((1+2)+(3+4))"}) {
+            ExpTree tree = new ExpTree();
+            tree.fill(input, false);
+            System.out.println(input + " -> " + tree.infix() + " -> " + tree.infix(true));
+        }
+        try {
+            Path exported = Files.createTempFile("million", ".txt");
+            try (java.io.Writer writer = Files.newBufferedWriter(exported)) {
+                million.infix(writer, true);
+            }
+            ExpTree reread = new ExpTree();
+            reread.fill(Files.readAllLines(exported).get(0), false);
+            StringBuilder prefix = new StringBuilder();
+            million.prefix(prefix);
+            System.out.println(million.size() + " nodes written as " + Files.size(exported) + " characters of infix, instead of " +
+                million.infix().length() + " with every parenthesis; read back " + (reread.prefix().contentEquals(prefix) ? "the same" : "DIFFERENT"));
+            Files.delete(exported);
+        } catch (IOException e) {
+            System.out.println("Couldn't export the tree: " + e.getMessage());
+        }
+        
+        //Parsed expressions saved in binary and loaded back without parsing, one at a time and as a library
+        System.out.println("\n----- BINARY ------\n");
+        for (String input : new String[] {"((8*7)+4)*5+(2+2)*(3*7)", "rate*100+bonus", "2147483647+1", "1 2 3", ""}) {
+            ExpTree tree = new ExpTree();
+            tree.fill(input, false);
+            byte[] binary = tree.toBinary();
+            ExpTree loaded = ExpTree.fromBinary(java.nio.ByteBuffer.wrap(binary));
+            System.out.println("\"" + input + "\" in " + binary.length + " bytes, loaded back as " + loaded.postfix() + " = " +
+                loaded.evaluate(new int[loaded.variables().length]));
+        }
+        try {
+            Path libraryFile = Files.createTempFile("library", ".bin");
+            ExpTree square = new ExpTree();
+            square.fill("x*x+2*x+1", false);
+            ExpBinary.save(libraryFile, Arrays.asList("million", "square"), Arrays.asList(million, square));
+            ExpBinary.Library library = ExpBinary.open(libraryFile);
+            System.out.println("Library of " + library.size() + " expressions in " + Files.size(libraryFile) + " bytes");
+            for (int i = 0; i < library.size(); i++) {
+                ExpTree loaded = library.get(library.name(i));
+                System.out.println(library.name(i) + ": " + loaded.size() + " nodes, with x = 3 " + loaded.evaluate(new int[] {3}));
+            }
+            byte[] broken = Files.readAllBytes(libraryFile);
+            broken[java.nio.ByteBuffer.wrap(broken).getInt(9)] = 0x7F; //the first name now runs past the end of the names
+            try {
+                new ExpBinary.Library(java.nio.ByteBuffer.wrap(broken)).name(0);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Loading a broken library: " + e.getMessage());
+            }
+            java.nio.ByteBuffer.wrap(broken).putInt(5, Integer.MAX_VALUE); //so many expressions the table can't fit
+            try {
+                new ExpBinary.Library(java.nio.ByteBuffer.wrap(broken));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Loading a library that's too short: " + e.getMessage());
+            }
+            try {
+                library.get(library.size());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Loading past the end: " + e.getMessage());
+            }
+            Files.delete(libraryFile);
+        } catch (IOException e) {
+            System.out.println("Couldn't save the library: " + e.getMessage());
+        }
+        try {
+            ExpTree.fromBinary(java.nio.ByteBuffer.wrap("not a tree".getBytes()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Loading something else: " + e.getMessage());
+        }
+        
+        //Everything parsed and evaluated counted by a listener, which is left off everywhere else
+        System.out.println("\n----- METRICS ------\n");
+        ExpMetrics metrics = new ExpMetrics();
+        ExpTree.setListener(metrics);
+        ExpTree counted = new ExpTree();
+        for (String input : new String[] {"x*x+2*x+1", "+ * x x 1", "x 0 /", "x^x^x", "1 2 3", "2#"}) {
+            counted.fill(input, false);
+            counted.eval(new int[][] {{0, 1, 2, 3, 1000}}, new int[5]);
+        }
+        ExpTree.setListener(null);
+        System.out.println("Parsed " + metrics.parses() + " (" + metrics.invalidParses() + " invalid), evaluated " + metrics.evaluations() +
+            " (" + metrics.overflows() + " overflowed, " + metrics.divisionsByZero() + " divided by zero)");
+        for (char op : ExpTree.OPERATORS.toCharArray()) System.out.print(op + " worked out " + metrics.operations(op) + " times  ");
+        System.out.println("\nInfix parses: " + metrics.parseTime("infix").count() + ", postfix evaluations: " + metrics.evalTime("postfix").count() +
+            ", deepest tree: " + metrics.depths().percentile(1) + " levels at most");
+        
+        //What went wrong and where, without anything printed by the tree itself
+        System.out.println("\n----- ERRORS ------\n");
+        ExpTree failing = new ExpTree();
+        for (String input : new String[] {"1 2 3", "+ 1 2 3", "1 2 + 3", "1+", "(1+2", "1+2)", "1 (2)", "+1 2", "23f", "2#",
+                "99999999999+1", "* ( 1 2 )", "1/0", "2147483647+1", "(2+2)*7"}) {
+            failing.fill(input);
+            failing.eval();
+            ExpResult result = failing.result();
+            String where = result.offset() < 0 ? "" : "\n" + " ".repeat((int) result.offset()) + "^";
+            System.out.println(input + "  ->  " + result.kind() + (result.offset() < 0 ? "" : " at " + result.offset()) + where);
+        }
+        
+        //Whole trees, however deep, as text, DOT and SVG
+        System.out.println("\n----- DRAWING ------\n");
+        ExpTree whole = new ExpTree("((((1*2)+(3*4))*((5*6)+(177*10)))+(((9*8)+(7*6))*((5*4)+(1*22))))-x");
+        whole.bind("x", 1);
+        whole.eval();
+        ExpDrawing picture = whole.drawing();
+        System.out.println(picture.width() + " columns, " + picture.height() + " rows:\n");
+        System.out.println(picture);
+        try {
+            ExpTree small = new ExpTree();
+            small.fillShared("(x+1)*(x+1)");
+            small.drawing().dot(System.out);
+            StringBuilder svg = new StringBuilder();
+            small.drawing().svg(svg);
+            System.out.println(svg.substring(0, svg.indexOf("\n")) + " ... " + svg.toString().split("\n").length + " lines of SVG");
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        String balanced = "1";
+        for (int i = 0; i < 16; i++) balanced = "(" + balanced + ")*(" + balanced + ")";
+        ExpTree huge = new ExpTree(balanced);
+        ExpDrawing hugePicture = huge.drawing();
+        System.out.println(hugePicture.size() + " nodes laid out in " + hugePicture.width() + " columns and " + hugePicture.height() + " rows");
+        //a loaded shared tree where every node adds the one before it to itself: 61 nodes standing for 2^61 - 1
+        java.nio.ByteBuffer doubling = java.nio.ByteBuffer.allocate(256);
+        doubling.putInt(ExpBinary.MAGIC).put(ExpBinary.VERSION).put((byte) (ExpBinary.VALID | ExpBinary.SHARED)).put((byte) 0);
+        doubling.put((byte) 0).put((byte) 61).put((byte) 127).put((byte) 61); //no variables, 61 nodes, the root is the last
+        doubling.put((byte) (ExpBinary.zigzag(1) << 3)); //the number 1
+        for (int i = 0; i < 60; i++) doubling.put((byte) ExpBinary.CODES.indexOf('+')).put((byte) 0); //both children the node before
+        doubling.flip();
+        ExpTree explosive = ExpTree.fromBinary(doubling);
+        System.out.println("A shared tree of " + explosive.size() + " nodes standing for 2^61 - 1 is drawn: " + (explosive.drawing() != null));
+        
+        //The same answers as JSON over HTTP
+        System.out.println("\n----- SERVER ------\n");
+        try {
+            ExpServer server = new ExpServer(0);
+            server.start();
+            for (String query : new String[] {"expr=x*x%2B1&x=3", "expr=%2B+1+2+3", "expr=1/0", "expr=x&x=big", "expr=1++++%2B++++a%23"}) {
+                try (InputStream in = new URL("http://127.0.0.1:" + server.port() + "/eval?" + query).openStream()) {
+                    System.out.print(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    System.out.println(query + ": " + e.getMessage().replace(Integer.toString(server.port()), "PORT"));
+                }
+            }
+            server.stop();
+            //a newline and an = in the expression can't make it look like another request with a variable
+            System.out.println("expr=a&x=1 and expr=a%0Ax%3D1 coalesce: " +
+                ExpServer.key("a", java.util.Collections.singletonMap("x", 1)).equals(ExpServer.key("a\nx=1", java.util.Collections.emptyMap())));
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        
+        //One tree shared by lots of threads, each evaluating it with its own values
+        System.out.println("\n----- THREADS ------\n");
+        final ExpTree shared = new ExpTree("x*x+2*x+1");
+        final int[] wrong = new int[1];
+        Thread[] threads = new Thread[64];
+        for (int t = 0; t < threads.length; t++) {
+            final int x = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    ExpResult result = shared.evaluate(new int[] {x}, i % 2 == 0);
+                    if (result.value() != (x + 1) * (x + 1)) {
+                        synchronized (wrong) { wrong[0]++; }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println(threads.length + " threads evaluated " + shared.infix() + ", wrong results: " + wrong[0]);
+        System.out.println("x = 3 gives " + shared.evaluate(new int[] {3}) + ", x = 7 compiled gives " + shared.eval(new int[] {7}));
+        
+        //Very deep trees, to make sure nothing runs out of stack
+        int n = 1000000;
+        StringBuilder leftDeep = new StringBuilder("1"); //1+1+1+...+1
+        StringBuilder rightDeep = new StringBuilder(); //+ 1 + 1 + ... 1 1
+        StringBuilder postfixDeep = new StringBuilder("1"); //1 1 1 ... 1 + + ... +
+        StringBuilder powers = new StringBuilder("1"); //1^1^1^...^1, which groups from the right
+        for (int i = 0; i < n; i++) {
+            leftDeep.append("+1");
+            rightDeep.append("+ 1 ");
+            postfixDeep.append(" 1");
+            powers.append("^1");
+        }
+        rightDeep.append("1");
+        for (int i = 0; i < n; i++) postfixDeep.append(" +");
+        String[] deepInputs = {leftDeep.toString(), rightDeep.toString(), postfixDeep.toString(), powers.toString()};
+        String[] deepNames = {"left-deep infix", "right-deep prefix", "right-deep postfix", "right-deep infix"};
+        for (int i = 0; i < deepInputs.length; i++) {
+            System.out.println("\n----- DEEP TEST " + i + ": " + deepNames[i] + " with " + n + " operators ------\n");
+            ExpTree deep = new ExpTree(deepInputs[i]);
+            System.out.println("Final value: " + deep.eval());
+            System.out.println("Compiled value: " + deep.compile().run());
+            System.out.println("Prefix length:  " + deep.prefix().length());
+            System.out.println("Postfix length: " + deep.postfix().length());
+            System.out.println("Infix length:   " + deep.infix().length());
+            System.out.println("Instructions length: " + deep.instruct().length());
+        }
     }
 }